@@ -0,0 +1,91 @@
+package com.aliza.davening;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Moves the rules of a <style> block onto the tags themselves, for email
+ * clients that drop the head of an html message. Only plain tag selectors are
+ * supported (body, td, h2...), which is all EmailScheme uses - anything else is
+ * refused up front, rather than silently left out.
+ *
+ * Meant to run once, over the EmailScheme fragments, when they are compiled.
+ */
+public class CssInliner {
+
+	private static final Pattern stylePattern = Pattern.compile("<style>(.*?)</style>", Pattern.DOTALL);
+	private static final Pattern rulePattern = Pattern.compile("([^{}]+)\\{([^}]*)\\}");
+	private static final Pattern tagPattern = Pattern.compile("<([a-zA-Z][a-zA-Z0-9]*)([^>]*)>");
+	private static final Pattern styleAttributePattern = Pattern.compile("\\sstyle=(['\"])(.*?)\\1");
+
+	// Declarations per tag name, in the order they appeared
+	private final Map<String, String> declarations = new LinkedHashMap<String, String>();
+
+	// Reads the rules out of the <style> block of the given html head.
+	public CssInliner(String htmlHead) {
+		Matcher style = stylePattern.matcher(htmlHead);
+		if (!style.find()) {
+			return;
+		}
+		Matcher rule = rulePattern.matcher(style.group(1));
+		while (rule.find()) {
+			String body = rule.group(2).trim();
+			for (String selector : rule.group(1).split(",")) {
+				selector = selector.trim().toLowerCase();
+				if (!selector.matches("[a-z][a-z0-9]*")) {
+					throw new IllegalArgumentException("Cannot inline the css selector: " + selector);
+				}
+				declarations.merge(selector, body, (before, after) -> join(before, after));
+			}
+		}
+	}
+
+	// The declarations that apply to a tag, or an empty string.
+	public String stylesFor(String tag) {
+		return declarations.getOrDefault(tag.toLowerCase(), "");
+	}
+
+	/*
+	 * Returns the fragment with each tag's rules put in its style attribute. A
+	 * style already on the tag comes last, so it still wins, as it would have
+	 * with the stylesheet. If the fragment is a template, percent signs in the
+	 * added css are doubled so they aren't taken for placeholders.
+	 */
+	public String inline(String fragment, boolean template) {
+		Matcher tag = tagPattern.matcher(fragment);
+		StringBuffer inlined = new StringBuffer(fragment.length() + 64);
+
+		while (tag.find()) {
+			String css = stylesFor(tag.group(1));
+			if (css.isEmpty()) {
+				tag.appendReplacement(inlined, Matcher.quoteReplacement(tag.group()));
+				continue;
+			}
+			if (template) {
+				css = css.replace("%", "%%");
+			}
+
+			String attributes = tag.group(2);
+			Matcher existing = styleAttributePattern.matcher(attributes);
+			if (existing.find()) {
+				attributes = attributes.substring(0, existing.start()) + " style='" + join(css, existing.group(2))
+						+ "'" + attributes.substring(existing.end());
+			} else {
+				attributes = " style='" + css + "'" + attributes;
+			}
+			tag.appendReplacement(inlined, Matcher.quoteReplacement("<" + tag.group(1) + attributes + ">"));
+		}
+		tag.appendTail(inlined);
+		return inlined.toString();
+	}
+
+	private static String join(String first, String second) {
+		first = first.trim();
+		if (first.isEmpty()) {
+			return second;
+		}
+		return first.endsWith(";") ? first + " " + second : first + "; " + second;
+	}
+}
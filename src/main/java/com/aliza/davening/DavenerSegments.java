@@ -0,0 +1,175 @@
+package com.aliza.davening;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.aliza.davening.entities.Davener;
+import com.aliza.davening.repositories.DavenerRepository;
+
+/*
+ * Who gets which emails, kept in memory so that finding the recipients of a
+ * weekly list or an urgent name is not a query. Daveners are numbered by their
+ * id, and each group of them is a BitSet: the active ones, those who want
+ * urgent names, those who get every category, and those who chose each
+ * category. The recipients of a category are worked out from these a word at a
+ * time, which stays quick with tens of thousands of daveners.
+ *
+ * Read from the database on first use; after that every change to a davener
+ * has to be passed on here (see AdminService), or reload() called.
+ */
+@Component
+public class DavenerSegments {
+
+	private final Logger log = LoggerFactory.getLogger(DavenerSegments.class);
+
+	@Autowired
+	private DavenerRepository davenerRepository;
+
+	private boolean loaded;
+
+	// Email by davener id, and id by (lowercased) email
+	private final Map<Integer, String> emails = new HashMap<Integer, String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	private final BitSet active = new BitSet();
+	private final BitSet urgent = new BitSet();
+	private final BitSet allCategories = new BitSet();
+	private final Map<Long, BitSet> byCategory = new HashMap<Long, BitSet>();
+
+	// The active daveners who get the weekly list of this category
+	public synchronized List<String> weeklyRecipients(long categoryId) {
+		return emailsOf(inCategory(categoryId));
+	}
+
+	// The active daveners who get urgent names of this category
+	public synchronized List<String> urgentRecipients(long categoryId) {
+		BitSet recipients = inCategory(categoryId);
+		recipients.and(urgent);
+		return emailsOf(recipients);
+	}
+
+	// The davener was added or changed.
+	public synchronized void update(Davener davener) {
+		load();
+		int id = index(davener.getId());
+		removeIndex(id);
+
+		emails.put(id, davener.getEmail());
+		ids.put(davener.getEmail().toLowerCase(), id);
+		active.set(id, davener.isActive());
+		urgent.set(id, !davener.isWeeklyOnly());
+		if (davener.getCategories() == null || davener.getCategories().isEmpty()) {
+			allCategories.set(id);
+		} else {
+			for (Long categoryId : davener.getCategories()) {
+				byCategory.computeIfAbsent(categoryId, c -> new BitSet()).set(id);
+			}
+		}
+	}
+
+	public synchronized void remove(long davenerId) {
+		load();
+		removeIndex(index(davenerId));
+	}
+
+	// For changes made by email in a single update (activation, unsubscribes,
+	// bounces), without loading the daveners.
+	public synchronized void setActive(Collection<String> davenerEmails, boolean isActive) {
+		load();
+		for (String email : davenerEmails) {
+			Integer id = ids.get(email.trim().toLowerCase());
+			if (id != null) {
+				active.set(id, isActive);
+			}
+		}
+	}
+
+	public synchronized void removeCategory(long categoryId) {
+		byCategory.remove(categoryId);
+	}
+
+	// Forgets everything, to be read again on next use.
+	public synchronized void reload() {
+		loaded = false;
+	}
+
+	private BitSet inCategory(long categoryId) {
+		load();
+		BitSet recipients = (BitSet) allCategories.clone();
+		BitSet chosen = byCategory.get(categoryId);
+		if (chosen != null) {
+			recipients.or(chosen);
+		}
+		recipients.and(active);
+		return recipients;
+	}
+
+	private List<String> emailsOf(BitSet daveners) {
+		List<String> list = new ArrayList<String>(daveners.cardinality());
+		for (int id = daveners.nextSetBit(0); id >= 0; id = daveners.nextSetBit(id + 1)) {
+			list.add(emails.get(id));
+		}
+		return list;
+	}
+
+	private void removeIndex(int id) {
+		String email = emails.remove(id);
+		if (email != null) {
+			ids.remove(email.toLowerCase());
+		}
+		active.clear(id);
+		urgent.clear(id);
+		allCategories.clear(id);
+		for (BitSet category : byCategory.values()) {
+			category.clear(id);
+		}
+	}
+
+	// Ids are generated from 1 up, so they make compact bit indexes.
+	private static int index(long davenerId) {
+		if (davenerId < 0 || davenerId > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Davener id out of range: " + davenerId);
+		}
+		return (int) davenerId;
+	}
+
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		emails.clear();
+		ids.clear();
+		active.clear();
+		urgent.clear();
+		allCategories.clear();
+		byCategory.clear();
+
+		for (Object[] row : davenerRepository.getAllDavenerSettings()) {
+			int id = index((Long) row[0]);
+			String email = (String) row[1];
+			emails.put(id, email);
+			ids.put(email.toLowerCase(), id);
+			active.set(id, (Boolean) row[2]);
+			urgent.set(id, !(Boolean) row[3]);
+			allCategories.set(id);
+		}
+		for (Object[] row : davenerRepository.getAllDavenerCategories()) {
+			int id = index((Long) row[0]);
+			allCategories.clear(id);
+			byCategory.computeIfAbsent((Long) row[1], c -> new BitSet()).set(id);
+		}
+
+		loaded = true;
+		log.info(String.format("Loaded %d daveners (%d active) into %d category segments", emails.size(),
+				active.cardinality(), byCategory.size()));
+	}
+}
@@ -40,9 +40,9 @@ public class DaveningApplication {
 			DocumentException, PermissionException {
 
 		
-		// Needed the below alternative for Utilities.buildListImage
+		// The weekly image is painted with Java2D (WeeklyImageRenderer), so running
+		// headless is fine.
 		 SpringApplicationBuilder builder = new SpringApplicationBuilder(DaveningApplication.class);
-		 builder.headless(false);
 		 ConfigurableApplicationContext context = builder.run(args);
 
 		// For testing:
@@ -16,7 +16,8 @@ public class EmailScheme {
 
 	private static String banimLineHebrew = "יהי רצון ש___ יפקדו בזרע חיא וקימא";
 
-	private static String confirmationEmailTextLocation = "src/main/resources/static/confirmationEmailText.html";
+	// A classpath location (see EmailTemplates)
+	private static String confirmationEmailTextLocation = "static/confirmationEmailText.html";
 
 	private static String htmlHead = "<!DOCTYPE html><html><head><title>Weekly Davening List</title><style>body{text-align:center} table, td {padding: 10px; border-collapse: collapse; border: 1px solid black} h2, h3, h4{text-align:center}</style></head>";
 
@@ -32,11 +33,34 @@ public class EmailScheme {
 
 	private static String nextWeekCategory = "<h3>Next week:  %s                שבוע הבא: %s</h3>";
 
+	// The same line as nextWeekCategory, for painting the list without html.
+	private static String nextWeekCategoryText = "Next week:  %s      שבוע הבא: %s";
+
 	private static String sendGoodNewsMessage = "Please email %s with name and good news!";
 
 	private static String htmlBodyEnd = "</body></html>";
 
-	private static String weeklyEmailText = "To unsubscribe from the weekly davening list, click <a href='http://www.google.com'>HERE</a>";
+	private static String weeklyEmailText = "To unsubscribe from the weekly davening list, or to choose which lists you get, click <a href='%s'>HERE</a>";
+
+	// The page an unsubscribe link opens, asking to confirm (the address and token
+	// are sent on with the form), followed by the davener's preferences form, and
+	// the pages after.
+	private static String unsubscribePage = "<!DOCTYPE html><html><body style='text-align:center'><h3>Unsubscribe %s from the davening list?</h3>"
+			+ "<form method='post' action='unsubscribe'><input type='hidden' name='email' value='%s'><input type='hidden' name='token' value='%s'>"
+			+ "<button type='submit'>Unsubscribe</button></form>%s</body></html>";
+
+	private static String preferencesForm = "<h3>Or choose which lists you get:</h3>"
+			+ "<form method='post' action='preferences'><input type='hidden' name='email' value='%s'><input type='hidden' name='token' value='%s'>"
+			+ "%s<p>(Leave them all unticked to get every category.)</p>"
+			+ "<label><input type='checkbox' name='weeklyOnly' value='true'%s> Only the weekly lists, without urgent names</label><br><br>"
+			+ "<button type='submit'>Save</button></form>";
+
+	// Category id, ' checked' or nothing, English and Hebrew names
+	private static String categoryCheckbox = "<label><input type='checkbox' name='categories' value='%s'%s> %s - %s</label><br>";
+
+	private static String unsubscribedPage = "<!DOCTYPE html><html><body style='text-align:center'><h3>You have been unsubscribed from the davening list.</h3></body></html>";
+
+	private static String preferencesSavedPage = "<!DOCTYPE html><html><body style='text-align:center'><h3>Your choices have been saved.</h3></body></html>";
 
 	// Subject includes the category
 	private static String weeklyEmailSubject = "Weekly davening list for %s";
@@ -74,10 +98,58 @@ public class EmailScheme {
 
 	private static String informAdminOfNewNameSubject = "A new name has been added to your davening list. ";
 
+	// Several of the notices above, sent together (see AdminNotifier).
+	private static String adminDigestSubject = "%d names have been added or updated on your davening list. ";
+
+	private static String adminDigestEntry = "<h4>%s</h4>%s<hr>";
+
 	private static String weeklyAdminReminderSubject = "Davening list reminder: Send out the weekly list!";
 
 	private static String expiringNameSubject = "Davening List Confirmation";
 
+	private static String expiringNameMessage = "We've been davening for %s for %s.";
+
+	// A big colored link, with the link, color and text filled in.
+	private static String htmlButton = "<td style='-webkit-border-radius: 5px; -moz-border-radius: 5px; border-radius: 5px; color: #ffffff; display: block;' align='center' bgcolor=%s width='300' height='40'><a style='font-size: 16px; font-weight: bold; font-family: Helvetica, Arial, sans-serif; text-decoration: none; line-height: 40px;  display: inline-block;' href=%s><span style='color: #ffffff;'>%s</span></a></td>";
+
+	// The fragments above that get filled in, compiled once (see HtmlTemplate).
+	private static final HtmlTemplate simpleHeaderTemplate = HtmlTemplate.compile(simpleHeader);
+	private static final HtmlTemplate bilingualHeaderTemplate = HtmlTemplate.compile(bilingualHeader);
+	private static final HtmlTemplate htmlNameRowTemplate = HtmlTemplate.compile(htmlNameRowInList);
+	private static final HtmlTemplate htmlBanimRowTemplate = HtmlTemplate.compile(htmlBanimRowInList);
+	private static final HtmlTemplate nextWeekCategoryTemplate = HtmlTemplate.compile(nextWeekCategory);
+	private static final HtmlTemplate sendGoodNewsTemplate = HtmlTemplate.compile(sendGoodNewsMessage);
+	private static final HtmlTemplate weeklyEmailTextTemplate = HtmlTemplate.compile(weeklyEmailText);
+	private static final HtmlTemplate unsubscribePageTemplate = HtmlTemplate.compile(unsubscribePage);
+	private static final HtmlTemplate preferencesFormTemplate = HtmlTemplate.compile(preferencesForm);
+	private static final HtmlTemplate categoryCheckboxTemplate = HtmlTemplate.compile(categoryCheckbox);
+	private static final HtmlTemplate urgentDavenforBanimTemplate = HtmlTemplate.compile(urgentDavenforEmailBanim);
+	private static final HtmlTemplate urgentDavenforTextTemplate = HtmlTemplate.compile(urgentDavenforEmailText);
+	private static final HtmlTemplate informAdminOfUpdateTemplate = HtmlTemplate.compile(informAdminOfUpdate);
+	private static final HtmlTemplate informAdminOfNewNameTemplate = HtmlTemplate.compile(informAdminOfNewName);
+	private static final HtmlTemplate adminDigestEntryTemplate = HtmlTemplate.compile(adminDigestEntry);
+	private static final HtmlTemplate boldFirstMessageTemplate = HtmlTemplate.compile(boldFirstMessage);
+	private static final HtmlTemplate boldSecondMessageTemplate = HtmlTemplate.compile(boldSecondMessage);
+	private static final HtmlTemplate expiringNameMessageTemplate = HtmlTemplate.compile(expiringNameMessage);
+	private static final HtmlTemplate htmlButtonTemplate = HtmlTemplate.compile(htmlButton);
+
+	// The list's fragments again, with the stylesheet in htmlHead moved onto the
+	// tags, for sending the list inline as the email body (WeeklyFormat.INLINE).
+	private static final CssInliner cssInliner = new CssInliner(htmlHead);
+	private static final String inlineListStart = "<div style='" + cssInliner.stylesFor("body") + "'>";
+	private static final String inlineListEnd = "</div>";
+	private static final String inlineTableStart = cssInliner.inline(tableStart, false);
+	private static final HtmlTemplate inlineSimpleHeaderTemplate = HtmlTemplate
+			.compile(cssInliner.inline(simpleHeader, true));
+	private static final HtmlTemplate inlineBilingualHeaderTemplate = HtmlTemplate
+			.compile(cssInliner.inline(bilingualHeader, true));
+	private static final HtmlTemplate inlineNameRowTemplate = HtmlTemplate
+			.compile(cssInliner.inline(htmlNameRowInList, true));
+	private static final HtmlTemplate inlineBanimRowTemplate = HtmlTemplate
+			.compile(cssInliner.inline(htmlBanimRowInList, true));
+	private static final HtmlTemplate inlineNextWeekCategoryTemplate = HtmlTemplate
+			.compile(cssInliner.inline(nextWeekCategory, true));
+
 	public static int getImageWidth() {
 		return imageWidth;
 	}
@@ -142,6 +214,10 @@ public class EmailScheme {
 		return nextWeekCategory;
 	}
 
+	public static String getNextWeekCategoryText() {
+		return nextWeekCategoryText;
+	}
+
 	public static String getSendGoodNewsMessage() {
 		return sendGoodNewsMessage;
 	}
@@ -210,6 +286,10 @@ public class EmailScheme {
 		return informAdminOfNewNameSubject;
 	}
 
+	public static String getAdminDigestSubject() {
+		return adminDigestSubject;
+	}
+
 	public static String getExpiringNameSubject() {
 		return expiringNameSubject;
 	}
@@ -218,4 +298,128 @@ public class EmailScheme {
 		return weeklyAdminReminderSubject;
 	}
 
+	public static String getExpiringNameMessage() {
+		return expiringNameMessage;
+	}
+
+	public static String getHtmlButton() {
+		return htmlButton;
+	}
+
+	public static HtmlTemplate getSimpleHeaderTemplate() {
+		return simpleHeaderTemplate;
+	}
+
+	public static HtmlTemplate getBilingualHeaderTemplate() {
+		return bilingualHeaderTemplate;
+	}
+
+	public static HtmlTemplate getHtmlNameRowTemplate() {
+		return htmlNameRowTemplate;
+	}
+
+	public static HtmlTemplate getHtmlBanimRowTemplate() {
+		return htmlBanimRowTemplate;
+	}
+
+	public static HtmlTemplate getNextWeekCategoryTemplate() {
+		return nextWeekCategoryTemplate;
+	}
+
+	public static HtmlTemplate getWeeklyEmailTextTemplate() {
+		return weeklyEmailTextTemplate;
+	}
+
+	public static HtmlTemplate getUnsubscribePageTemplate() {
+		return unsubscribePageTemplate;
+	}
+
+	public static HtmlTemplate getPreferencesFormTemplate() {
+		return preferencesFormTemplate;
+	}
+
+	public static HtmlTemplate getCategoryCheckboxTemplate() {
+		return categoryCheckboxTemplate;
+	}
+
+	public static String getUnsubscribedPage() {
+		return unsubscribedPage;
+	}
+
+	public static String getPreferencesSavedPage() {
+		return preferencesSavedPage;
+	}
+
+	public static HtmlTemplate getSendGoodNewsTemplate() {
+		return sendGoodNewsTemplate;
+	}
+
+	public static HtmlTemplate getUrgentDavenforBanimTemplate() {
+		return urgentDavenforBanimTemplate;
+	}
+
+	public static HtmlTemplate getUrgentDavenforTextTemplate() {
+		return urgentDavenforTextTemplate;
+	}
+
+	public static HtmlTemplate getInformAdminOfUpdateTemplate() {
+		return informAdminOfUpdateTemplate;
+	}
+
+	public static HtmlTemplate getInformAdminOfNewNameTemplate() {
+		return informAdminOfNewNameTemplate;
+	}
+
+	public static HtmlTemplate getAdminDigestEntryTemplate() {
+		return adminDigestEntryTemplate;
+	}
+
+	public static HtmlTemplate getBoldFirstMessageTemplate() {
+		return boldFirstMessageTemplate;
+	}
+
+	public static HtmlTemplate getBoldSecondMessageTemplate() {
+		return boldSecondMessageTemplate;
+	}
+
+	public static HtmlTemplate getExpiringNameMessageTemplate() {
+		return expiringNameMessageTemplate;
+	}
+
+	public static HtmlTemplate getHtmlButtonTemplate() {
+		return htmlButtonTemplate;
+	}
+
+	public static String getInlineListStart() {
+		return inlineListStart;
+	}
+
+	public static String getInlineListEnd() {
+		return inlineListEnd;
+	}
+
+	public static String getInlineTableStart() {
+		return inlineTableStart;
+	}
+
+	public static HtmlTemplate getInlineSimpleHeaderTemplate() {
+		return inlineSimpleHeaderTemplate;
+	}
+
+	public static HtmlTemplate getInlineBilingualHeaderTemplate() {
+		return inlineBilingualHeaderTemplate;
+	}
+
+	public static HtmlTemplate getInlineNameRowTemplate() {
+		return inlineNameRowTemplate;
+	}
+
+	public static HtmlTemplate getInlineBanimRowTemplate() {
+		return inlineBanimRowTemplate;
+	}
+
+	public static HtmlTemplate getInlineNextWeekCategoryTemplate() {
+		return inlineNextWeekCategoryTemplate;
+	}
+
 }
@@ -0,0 +1,132 @@
+package com.aliza.davening;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+/*
+ * Email texts kept as files (such as the confirmation email), read from the
+ * classpath once and kept compiled (see HtmlTemplate).
+ *
+ * A file of the same name in email.templates.directory takes the place of the
+ * packaged one, so a text can be changed without a new build. That directory
+ * is watched, and any change in it makes the templates be read again on their
+ * next use.
+ */
+@Component
+public class EmailTemplates {
+
+	private final Logger log = LoggerFactory.getLogger(EmailTemplates.class);
+
+	// Empty means only the packaged templates are used.
+	@Value("${email.templates.directory:}")
+	private String overrideDirectory;
+
+	// Compiled templates by classpath location
+	private final Map<String, HtmlTemplate> templates = new ConcurrentHashMap<String, HtmlTemplate>();
+
+	// Bumped on every change in the directory, so that a template read before a
+	// change is not kept after it.
+	private final AtomicLong generation = new AtomicLong();
+
+	private WatchService watchService;
+
+	@PostConstruct
+	private void watchOverrides() throws IOException {
+		if (overrideDirectory.isEmpty()) {
+			return;
+		}
+		Path directory = Paths.get(overrideDirectory);
+		if (!Files.isDirectory(directory)) {
+			log.warn("Email templates directory " + directory.toAbsolutePath() + " does not exist, not watching it");
+			return;
+		}
+
+		watchService = FileSystems.getDefault().newWatchService();
+		directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+
+		Thread watcher = new Thread(this::watch, "email-templates-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	@PreDestroy
+	private void stopWatching() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+
+	// The template at the given classpath location, or the file overriding it.
+	public HtmlTemplate get(String location) throws IOException {
+		HtmlTemplate template = templates.get(location);
+		if (template != null) {
+			return template;
+		}
+
+		long readAtGeneration = generation.get();
+		template = HtmlTemplate.compile(read(location));
+		if (readAtGeneration == generation.get()) {
+			templates.put(location, template);
+		}
+		return template;
+	}
+
+	private String read(String location) throws IOException {
+		if (!overrideDirectory.isEmpty()) {
+			Path override = Paths.get(overrideDirectory).resolve(Paths.get(location).getFileName());
+			if (Files.isRegularFile(override)) {
+				return new String(Files.readAllBytes(override), StandardCharsets.UTF_8);
+			}
+		}
+		try (InputStream in = new ClassPathResource(location).getInputStream()) {
+			return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			// There are only a few templates - any change reloads them all.
+			for (WatchEvent<?> event : key.pollEvents()) {
+				log.info("Email template " + event.context() + " changed (" + event.kind() + "), reloading templates");
+			}
+			generation.incrementAndGet();
+			templates.clear();
+
+			if (!key.reset()) {
+				log.warn("Email templates directory " + overrideDirectory + " is no longer watched");
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.aliza.davening;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * An html fragment with %s placeholders (the same syntax EmailScheme always
+ * used with String.format), parsed once into its literal parts. Rendering just
+ * appends the parts and the values into a builder sized up front, instead of
+ * re-parsing the format string on every call.
+ *
+ * render() escapes the values, as they mostly come from users (names, notes).
+ * renderTrusted() is for values that are html themselves.
+ */
+public final class HtmlTemplate {
+
+	// The text around the placeholders - always one more than the placeholders.
+	private final String[] literals;
+
+	private final int literalLength;
+
+	private HtmlTemplate(String[] literals) {
+		this.literals = literals;
+		int length = 0;
+		for (String literal : literals) {
+			length += literal.length();
+		}
+		this.literalLength = length;
+	}
+
+	// Supports %s placeholders and %% for a percent sign.
+	public static HtmlTemplate compile(String format) {
+		List<String> literals = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+
+		for (int i = 0; i < format.length(); i++) {
+			char c = format.charAt(i);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			char next = i + 1 < format.length() ? format.charAt(i + 1) : 0;
+			if (next == 's') {
+				literals.add(literal.toString());
+				literal.setLength(0);
+			} else if (next == '%') {
+				literal.append('%');
+			} else {
+				throw new IllegalArgumentException(
+						String.format("Unsupported placeholder at position %d of template: %s", i, format));
+			}
+			i++;
+		}
+		literals.add(literal.toString());
+
+		return new HtmlTemplate(literals.toArray(new String[literals.size()]));
+	}
+
+	public int placeholderCount() {
+		return literals.length - 1;
+	}
+
+	// Length of the template without any values, for sizing builders.
+	public int literalLength() {
+		return literalLength;
+	}
+
+	public String render(String... values) {
+		StringBuilder out = new StringBuilder(estimateLength(values));
+		appendTo(out, values);
+		return out.toString();
+	}
+
+	public String renderTrusted(String... values) {
+		StringBuilder out = new StringBuilder(estimateLength(values));
+		appendTrustedTo(out, values);
+		return out.toString();
+	}
+
+	public void appendTo(StringBuilder out, String... values) {
+		checkValues(values);
+		out.append(literals[0]);
+		for (int i = 0; i < values.length; i++) {
+			appendEscaped(out, values[i]);
+			out.append(literals[i + 1]);
+		}
+	}
+
+	public void appendTrustedTo(StringBuilder out, String... values) {
+		checkValues(values);
+		out.append(literals[0]);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				out.append(values[i]);
+			}
+			out.append(literals[i + 1]);
+		}
+	}
+
+	public static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		StringBuilder out = new StringBuilder(value.length() + 16);
+		appendEscaped(out, value);
+		return out.toString();
+	}
+
+	public static void appendEscaped(StringBuilder out, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				out.append("&amp;");
+				break;
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '"':
+				out.append("&quot;");
+				break;
+			case '\'':
+				out.append("&#39;");
+				break;
+			default:
+				out.append(c);
+			}
+		}
+	}
+
+	private int estimateLength(String[] values) {
+		int length = literalLength;
+		for (String value : values) {
+			if (value != null) {
+				length += value.length();
+			}
+		}
+		// a little room for escapes
+		return length + 16;
+	}
+
+	private void checkValues(String[] values) {
+		if (values.length != literals.length - 1) {
+			throw new IllegalArgumentException(String.format("Template expects %d values but got %d",
+					literals.length - 1, values.length));
+		}
+	}
+}
@@ -1,8 +1,14 @@
 package com.aliza.davening;
 
+import java.io.IOException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -10,6 +16,7 @@ import org.springframework.stereotype.Component;
 
 import com.aliza.davening.entities.Davenfor;
 import com.aliza.davening.exceptions.EmailException;
+import com.aliza.davening.exceptions.EmptyInformationException;
 import com.aliza.davening.repositories.DavenforRepository;
 import com.aliza.davening.repositories.ParashaRepository;
 import com.aliza.davening.services.AdminService;
@@ -18,6 +25,8 @@ import com.aliza.davening.services.EmailSender;
 @Component
 public class MaintainList {
 
+	private final Logger log = LoggerFactory.getLogger(MaintainList.class);
+
 	@Autowired
 	DavenforRepository davenforRepository;
 
@@ -30,6 +39,12 @@ public class MaintainList {
 	@Autowired
 	ParashaRepository parashaRepository;
 
+	@Autowired
+	WeeklyArtifactStore weeklyArtifactStore;
+
+	@Autowired
+	Utilities utilities;
+
 	@Value("${wait.before.deletion}")
 	private long waitBeforeDeletion;
 
@@ -39,18 +54,44 @@ public class MaintainList {
 	@Scheduled(cron = "0 0 1 * * ?")
 	public void deleteExpired() {
 		davenforRepository.deleteByExpireAtLessThan(LocalDate.now().minusDays(waitBeforeDeletion));
+		weeklyArtifactStore.invalidateAll();
 	}
 
 	// Sends email to davenfor's submitter to let them know the expiring name will
-	// be deleted.
+	// be deleted. A submitter with several expiring names gets them all in one
+	// email. A failed email is logged, and doesn't stop the others.
 	// Fires at 1 a.m. every day
 	@Scheduled(cron = "0 0 1 * * ?")
-	public void offerExtensionOrDelete() throws EmailException {
+	public void offerExtensionOrDelete() {
 		List<Davenfor> expiredDavenfors = davenforRepository.findByExpireAtLessThan(LocalDate.now());
-		System.out.println(expiredDavenfors);
+
+		// Emails are compared ignoring case elsewhere, so they are grouped that way too.
+		Map<String, List<Davenfor>> bySubmitter = new LinkedHashMap<String, List<Davenfor>>();
 		for (Davenfor d : expiredDavenfors) {
-			emailSender.offerExtensionOrDelete(d);
+			bySubmitter.computeIfAbsent(d.getSubmitterEmail().toLowerCase(), email -> new ArrayList<Davenfor>())
+					.add(d);
+		}
+		int failed = 0;
+		for (List<Davenfor> submitterDavenfors : bySubmitter.values()) {
+			try {
+				emailSender.offerExtensionOrDelete(submitterDavenfors.get(0).getSubmitterEmail(),
+						submitterDavenfors);
+			} catch (EmailException e) {
+				failed++;
+				log.error(e.getMessage());
+			}
 		}
+
+		int sent = bySubmitter.size() - failed;
+		log.info(String.format("Expiring names: %d names, %d emails to submitters queued, %d failed (%d emails saved)",
+				expiredDavenfors.size(), sent, failed, expiredDavenfors.size() - bySubmitter.size()));
+	}
+
+	// Every Thursday at 7:50 a.m., just before reminding Admin, the week's list is
+	// prepared so that the 'send' link only has to dispatch it.
+	@Scheduled(cron = "0 50 7 * * THU")
+	public void preRenderWeekly() throws IOException, EmptyInformationException {
+		emailSender.preRenderWeekly();
 	}
 
 	// Every Thursday at 8 a.m. an email will be sent to Admin with a link to see
@@ -60,6 +101,17 @@ public class MaintainList {
 		emailSender.informAdmin(EmailScheme.getWeeklyAdminReminderSubject(), Utilities.setWeeklyAdminReminderMessage());
 	}
 
+	// Deletes archived weekly lists that are past the retention period (only when
+	// archiving is on).
+	// Fires at 1:30 a.m. every day
+	@Scheduled(cron = "0 30 1 * * ?")
+	public void deleteOldArchivedFiles() throws IOException {
+		int deleted = utilities.deleteOldArchivedFiles();
+		if (deleted > 0) {
+			log.info(String.format("Deleted %d archived weekly lists", deleted));
+		}
+	}
+
 	// Every Sunday at 2 a.m. changes category
 	@Scheduled(cron = "0 0 2 * * SUN")
 	public void updateCurrentCategory() {
@@ -0,0 +1,86 @@
+package com.aliza.davening;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//A small in-memory cache for rendered weekly artifacts (images, html etc.).
+//Entries are keyed by a hash of the content that went into them, so an unchanged list finds its earlier render.
+public class RenderCache<V> {
+
+	private final int maxEntries;
+
+	private final long maxAgeMillis;
+
+	// Access-ordered, so that the eldest entry is always the least recently used one.
+	private final LinkedHashMap<String, Entry<V>> entries;
+
+	public RenderCache(int maxEntries, long maxAgeMillis) {
+		this.maxEntries = maxEntries;
+		this.maxAgeMillis = maxAgeMillis;
+		this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			// Evicting by size - once over the limit, the least recently used render goes.
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+				return size() > RenderCache.this.maxEntries;
+			}
+		};
+	}
+
+	// Returns the cached value, or null if there is none (or it has become too old).
+	public synchronized V get(String key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (isExpired(entry, System.currentTimeMillis())) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	public synchronized void put(String key, V value) {
+		evictExpired();
+		entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		evictExpired();
+		return entries.size();
+	}
+
+	// Evicting by age - runs through all entries, there are only a handful of them.
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry<V>> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (isExpired(iterator.next(), now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return now - entry.createdAt > maxAgeMillis;
+	}
+
+	private static class Entry<V> {
+
+		private final V value;
+
+		private final long createdAt;
+
+		private Entry(V value, long createdAt) {
+			this.value = value;
+			this.createdAt = createdAt;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.aliza.davening;
+
+/*
+ * Holds up to capacity tokens, refilled steadily at refillPerSecond. Not
+ * thread safe on its own - callers that take from several buckets at once
+ * (see services.MailRateLimiter) lock around all of them.
+ */
+public class TokenBucket {
+
+	private final double capacity;
+
+	private final double refillPerMilli;
+
+	private double tokens;
+
+	private long refilledAt = System.currentTimeMillis();
+
+	public TokenBucket(double capacity, double refillPerSecond) {
+		this.capacity = capacity;
+		this.refillPerMilli = refillPerSecond / 1000;
+		this.tokens = capacity;
+	}
+
+	// A limit of so many per second: a second's worth can go out at once.
+	public static TokenBucket perSecond(double limit) {
+		return new TokenBucket(limit, limit);
+	}
+
+	// A limit of so many per day, coming back gradually over the day.
+	public static TokenBucket perDay(double limit) {
+		return new TokenBucket(limit, limit / (24 * 60 * 60));
+	}
+
+	/*
+	 * How long until the given number of tokens is there, 0 if they are there
+	 * now. More than the capacity is counted as a full bucket, so that a large
+	 * request waits for the bucket to fill rather than forever.
+	 */
+	public long millisUntil(double wanted, long now) {
+		refill(now);
+		double missing = Math.min(wanted, capacity) - tokens;
+		if (missing <= 0) {
+			return 0;
+		}
+		return refillPerMilli > 0 ? (long) Math.ceil(missing / refillPerMilli) : Long.MAX_VALUE;
+	}
+
+	// Takes the tokens - the bucket may go below empty for a request larger than
+	// the capacity.
+	public void take(double wanted, long now) {
+		refill(now);
+		tokens -= wanted;
+	}
+
+	public double getCapacity() {
+		return capacity;
+	}
+
+	public double available(long now) {
+		refill(now);
+		return Math.max(tokens, 0);
+	}
+
+	private void refill(long now) {
+		if (now > refilledAt) {
+			tokens = Math.min(capacity, tokens + (now - refilledAt) * refillPerMilli);
+			refilledAt = now;
+		}
+	}
+}
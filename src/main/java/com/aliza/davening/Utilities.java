@@ -1,17 +1,20 @@
 package com.aliza.davening;
 
-import java.awt.Graphics;
-import java.awt.GraphicsEnvironment;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
+import java.util.Base64;
 import java.util.List;
 
-import javax.imageio.ImageIO;
-import javax.swing.JEditorPane;
+import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -20,9 +23,7 @@ import org.springframework.stereotype.Component;
 import com.aliza.davening.entities.Category;
 import com.aliza.davening.entities.Davenfor;
 import com.aliza.davening.entities.Parasha;
-import com.aliza.davening.exceptions.DatabaseException;
 import com.aliza.davening.exceptions.EmptyInformationException;
-import com.aliza.davening.exceptions.ObjectNotFoundException;
 import com.aliza.davening.repositories.CategoryRepository;
 import com.aliza.davening.repositories.DavenforRepository;
 import com.aliza.davening.services.AdminService;
@@ -44,36 +45,167 @@ public class Utilities {
 	@Value("${spring.mail.username}")
 	private String adminEmail;
 
-	public File buildListImage(Category category, String weekName, String fullWeekName)
-			throws IOException, ObjectNotFoundException, DatabaseException, EmptyInformationException {
+	@Value("${weekly.image.cache.size:20}")
+	private int imageCacheSize;
 
-		int imageWidth = EmailScheme.getImageWidth();
-		int imageHeight = EmailScheme.getImageHeight();
+	@Value("${weekly.image.cache.minutes:1440}")
+	private long imageCacheMinutes;
 
-		String weeklyHtml = createWeeklyHtml(category, weekName);
+	// Sent lists are only written to disk when archiving is turned on.
+	@Value("${weekly.archive.enabled:false}")
+	private boolean archiveEnabled;
 
-		BufferedImage image = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
-				.getDefaultConfiguration().createCompatibleImage(imageWidth, imageHeight);
+	@Value("${weekly.archive.directory:archive}")
+	private String archiveDirectory;
 
-		Graphics graphics = image.createGraphics();
+	@Value("${weekly.archive.retention.days:30}")
+	private long archiveRetentionDays;
 
-		JEditorPane jep = new JEditorPane("text/html", weeklyHtml);
-		jep.setSize(imageWidth, imageHeight);
-		jep.print(graphics);
+	// <week name>_<yyyy-mm-dd>.<extension>, as archiveList names them
+	private static final String archivedFileGlob = "*_[0-9][0-9][0-9][0-9]-[0-9][0-9]-[0-9][0-9].*";
 
-		String fileName = "builtFiles/" + weekName + "_" + LocalDate.now().toString() + ".png";
+	// Encoded PNGs of lists already rendered, so that test sends and retries don't
+	// repaint an unchanged list.
+	private RenderCache<byte[]> imageCache;
 
-		Path filePath = Paths.get("builtFiles/" + weekName + "_" + LocalDate.now().toString() + ".png");
+	private RenderCache<byte[]> pdfCache;
 
-		// png seems to be better than jpeg, writes without a blotch behind the text
-		ImageIO.write(image, "png", new File(fileName));
+	private RenderCache<String> inlineHtmlCache;
 
-		return filePath.toFile();
+	// How much html is built before it is handed on to a writer
+	private static final int htmlChunkSize = 8192;
+
+	private final WeeklyImageRenderer imageRenderer = new WeeklyImageRenderer();
+
+	@Autowired
+	WeeklyImageEncoder imageEncoder;
+
+	@Autowired
+	WeeklyPdfRenderer pdfRenderer;
+
+	@PostConstruct
+	private void initCaches() {
+		imageCache = new RenderCache<byte[]>(imageCacheSize, imageCacheMinutes * 60 * 1000);
+		pdfCache = new RenderCache<byte[]>(imageCacheSize, imageCacheMinutes * 60 * 1000);
+		inlineHtmlCache = new RenderCache<String>(imageCacheSize, imageCacheMinutes * 60 * 1000);
+	}
+
+	// Returns the encoded png of the list, out of names and next category already
+	// retrieved by the caller.
+	public byte[] buildListImage(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) throws IOException, EmptyInformationException {
+
+		// Only if this exact list was not rendered lately do we paint it.
+		String contentKey = weeklyContentKey(category, weekName, categoryDavenfors, nextCategory);
+		byte[] png = imageCache.get(contentKey);
+
+		if (png == null) {
+			if (categoryDavenfors.isEmpty()) {
+				throw new EmptyInformationException("There are no names to daven for in this category. ");
+			}
+
+			BufferedImage image = imageRenderer.render(category, weekName, categoryDavenfors, nextCategory,
+					adminEmail);
+
+			// png seems to be better than jpeg, writes without a blotch behind the text
+			png = imageEncoder.encode(image);
+
+			imageCache.put(contentKey, png);
+		}
+		return png;
+	}
+
+	// Returns the list as a PDF, which (unlike the image) runs over as many pages as
+	// the names need.
+	public byte[] buildListPdf(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) throws IOException, EmptyInformationException {
+
+		String contentKey = weeklyContentKey(category, weekName, categoryDavenfors, nextCategory);
+		byte[] pdf = pdfCache.get(contentKey);
+
+		if (pdf == null) {
+			if (categoryDavenfors.isEmpty()) {
+				throw new EmptyInformationException("There are no names to daven for in this category. ");
+			}
+			pdf = pdfRenderer.render(category, weekName, categoryDavenfors, nextCategory, adminEmail);
+			pdfCache.put(contentKey, pdf);
+		}
+		return pdf;
+	}
+
+	// Keeps a copy of a sent list on disk, if archiving is turned on.
+	public void archiveList(String weekName, byte[] list, String extension) throws IOException {
+		if (!archiveEnabled) {
+			return;
+		}
+		Path archive = Paths.get(archiveDirectory);
+		Files.createDirectories(archive);
+		String fileName = (weekName != null ? weekName : "weekly") + "_" + LocalDate.now().toString() + "."
+				+ extension;
+		Files.write(archive.resolve(fileName), list);
+	}
+
+	/*
+	 * Deletes archived lists older than the retention period. Returns how many were
+	 * deleted. Nothing is touched while archiving is off, and only files named
+	 * like archived lists (see archiveList) are looked at.
+	 */
+	public int deleteOldArchivedFiles() throws IOException {
+		Path archive = Paths.get(archiveDirectory);
+		if (!archiveEnabled || !Files.isDirectory(archive)) {
+			return 0;
+		}
+
+		long cutoff = System.currentTimeMillis() - archiveRetentionDays * 24 * 60 * 60 * 1000;
+		int deleted = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(archive, archivedFileGlob)) {
+			for (Path file : files) {
+				if (Files.isRegularFile(file) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+					Files.delete(file);
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/*
+	 * A hash of everything that goes into the weekly list: the category, the
+	 * parasha name, every name row and the next week's category. Two renders with
+	 * the same key look exactly the same.
+	 */
+	public String weeklyContentKey(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // Every JVM must support SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		StringBuilder content = new StringBuilder();
+		content.append(category.getId()).append('|').append(category.getEnglish()).append('|')
+				.append(category.getHebrew()).append('|').append(weekName);
+		for (Davenfor d : categoryDavenfors) {
+			content.append('|').append(d.getId()).append(':').append(d.getNameEnglish()).append(':')
+					.append(d.getNameHebrew()).append(':').append(d.getNameEnglishSpouse()).append(':')
+					.append(d.getNameHebrewSpouse());
+		}
+		if (nextCategory != null) {
+			content.append('|').append(nextCategory.getEnglish()).append('|').append(nextCategory.getHebrew());
+		}
+
+		byte[] hash = digest.digest(content.toString().getBytes(StandardCharsets.UTF_8));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
 	}
 
 	public Category getNextCategory(Category current) {
+		return getNextCategory(current, categoryRepository.findAll());
+	}
 
-		List<Category> allCategories = categoryRepository.findAll();
+	// For callers that already loaded all categories (e.g. to look up several
+	// rotations at once).
+	public Category getNextCategory(Category current, List<Category> allCategories) {
 
 		int max = Integer.MAX_VALUE;
 		int currentPosition = current.getCatOrder();
@@ -110,9 +242,20 @@ public class Utilities {
 		return null;
 	}
 
+	// The admin reminder never changes, so it is built only once.
+	private static final String weeklyAdminReminderMessage = buildWeeklyAdminReminderMessage();
+
+	// The links in the expiring-name buttons, compiled once
+	private static final HtmlTemplate extendLinkTemplate = HtmlTemplate.compile(SchemeValues.getLinkToExtend());
+	private static final HtmlTemplate deleteLinkTemplate = HtmlTemplate.compile(SchemeValues.getLinkToDelete());
+
 	// Builds the long and complex email message that gets sent every week to Admin
 	// (to review and send list)
 	public static String setWeeklyAdminReminderMessage() {
+		return weeklyAdminReminderMessage;
+	}
+
+	private static String buildWeeklyAdminReminderMessage() {
 
 		// Prepare buttons
 		String button1 = createButton(SchemeValues.getLinkToReviewWeekly(), "#ffa200", "Review the list first");
@@ -135,74 +278,175 @@ public class Utilities {
 
 	public static String setExpiringNameMessage(Davenfor davenfor) {
 
+		// building the email message with the button area as a table at the bottom
+		String message = EmailScheme.getExpiringNameMessageTemplate().render(davenfor.getNameEnglish(),
+				davenfor.getCategory().getEnglish())
+				+ "  In order to keep our lists relevant, please confirm that the davening is still relevant. "
+				+ "<br><br>  If the davening is no longer relevant for this list either simply ignore this email or click the big red remove button."
+				+ createExpiringNameButtons(davenfor);
+
+		return message;
+	}
+
+	// One message for all of a submitter's expiring names, each with its own
+	// buttons. A single name gets the usual message.
+	public static String setExpiringNamesMessage(List<Davenfor> davenfors) {
+
+		if (davenfors.size() == 1) {
+			return setExpiringNameMessage(davenfors.get(0));
+		}
+
+		StringBuilder message = new StringBuilder(
+				"In order to keep our lists relevant, please confirm that the davening is still relevant for each of these names. "
+						+ "<br><br>  If the davening for a name is no longer relevant either simply ignore it or click its big red remove button.<br><br>");
+		for (Davenfor davenfor : davenfors) {
+			EmailScheme.getExpiringNameMessageTemplate().appendTo(message, davenfor.getNameEnglish(),
+					davenfor.getCategory().getEnglish());
+			message.append(createExpiringNameButtons(davenfor)).append("<br>");
+		}
+		return message.toString();
+	}
+
+	private static String createExpiringNameButtons(Davenfor davenfor) {
+
 		// Building links that the buttons will refer to
-		String personalizedExtendLink = String.format(SchemeValues.getLinkToExtend(), davenfor.getId(),
-				davenfor.getSubmitterEmail());
-		String personalizedDeleteLink = String.format(SchemeValues.getLinkToDelete(), davenfor.getId(),
-				davenfor.getSubmitterEmail());
+		String davenforId = String.valueOf(davenfor.getId());
+		String personalizedExtendLink = extendLinkTemplate.render(davenforId, davenfor.getSubmitterEmail());
+		String personalizedDeleteLink = deleteLinkTemplate.render(davenforId, davenfor.getSubmitterEmail());
 
 		// Creating the button 'components' as html tds
 		String button1 = createButton(personalizedExtendLink, "#32a842", "Keep the name on the list");
 		String button2 = createButton(personalizedDeleteLink, "#d10a3f", "Remove this name");
 
 		// Inserting the button tds to an html table
-		String buttonArea = "<table cellspacing='0' cellpadding='0'>	<tbody>	<tr> " + button1 + "<tr>" + button2
+		return "<table cellspacing='0' cellpadding='0'>	<tbody>	<tr> " + button1 + "<tr>" + button2
 				+ "</tr></tbody></table>";
+	}
 
-		// building the email message with the button area as a table at the bottom
-		String message = String.format("We've been davening for %s for %s.", davenfor.getNameEnglish(),
-				davenfor.getCategory().getEnglish())
-				+ "  In order to keep our lists relevant, please confirm that the davening is still relevant. "
-				+ "<br><br>  If the davening is no longer relevant for this list either simply ignore this email or click the big red remove button."
-				+ buttonArea;
+	public String createWeeklyHtml(Category category, String weekName) throws EmptyInformationException {
+		return createWeeklyHtml(category, weekName, davenforRepository.findAllDavenforByCategory(category),
+				getNextCategory(category));
+	}
 
-		return message;
+	// Builds the list out of names and next category already retrieved by the caller.
+	public String createWeeklyHtml(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) throws EmptyInformationException {
+
+		if (categoryDavenfors.isEmpty()) {
+			throw new EmptyInformationException("There are no names to daven for in this category. ");
+		}
+
+		// Sizing the builder up front: the fixed parts, plus every row with some room
+		// for the names in it.
+		StringBuilder stringBuilder = new StringBuilder(EmailScheme.getHtmlHead().length() + 1024
+				+ categoryDavenfors.size() * (EmailScheme.getHtmlBanimRowTemplate().literalLength() + 80));
+
+		try {
+			buildWeeklyHtml(stringBuilder, null, false, category, weekName, categoryDavenfors, nextCategory);
+		} catch (IOException e) { // Nothing is written anywhere but to the builder.
+			throw new IllegalStateException(e);
+		}
+		return stringBuilder.toString();
 	}
 
-	public String createWeeklyHtml(Category category, String weekName) throws EmptyInformationException {
-		StringBuilder stringBuilder = new StringBuilder();
+	/*
+	 * The list to go in the email body itself: no head, and the styles on the tags
+	 * (see EmailScheme.getInlineListStart), as many mail clients drop the head of a
+	 * message. Cached, like the image, for as long as the list does not change.
+	 */
+	public String buildInlineWeeklyHtml(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) throws EmptyInformationException {
+
+		String contentKey = weeklyContentKey(category, weekName, categoryDavenfors, nextCategory);
+		String html = inlineHtmlCache.get(contentKey);
+
+		if (html == null) {
+			if (categoryDavenfors.isEmpty()) {
+				throw new EmptyInformationException("There are no names to daven for in this category. ");
+			}
+			StringBuilder stringBuilder = new StringBuilder(1024
+					+ categoryDavenfors.size() * (EmailScheme.getInlineBanimRowTemplate().literalLength() + 80));
+			try {
+				buildWeeklyHtml(stringBuilder, null, true, category, weekName, categoryDavenfors, nextCategory);
+			} catch (IOException e) { // Nothing is written anywhere but to the builder.
+				throw new IllegalStateException(e);
+			}
+			html = stringBuilder.toString();
+			inlineHtmlCache.put(contentKey, html);
+		}
+		return html;
+	}
 
-		List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+	// Writes the list straight into the writer, a chunk at a time, instead of
+	// holding the whole document in memory.
+	public void writeWeeklyHtml(Writer writer, Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory) throws IOException, EmptyInformationException {
 
 		if (categoryDavenfors.isEmpty()) {
 			throw new EmptyInformationException("There are no names to daven for in this category. ");
 		}
 
+		StringBuilder chunk = new StringBuilder(htmlChunkSize + 1024);
+		buildWeeklyHtml(chunk, writer, false, category, weekName, categoryDavenfors, nextCategory);
+		writer.append(chunk);
+		writer.flush();
+	}
+
+	/*
+	 * Builds the list into stringBuilder. If a writer is given, whatever was built
+	 * is passed on to it every htmlChunkSize characters, and the builder is
+	 * emptied. An inline list is a fragment for an email body, with its styles on
+	 * the tags.
+	 */
+	private void buildWeeklyHtml(StringBuilder stringBuilder, Writer flushTo, boolean inline, Category category,
+			String weekName, List<Davenfor> categoryDavenfors, Category nextCategory) throws IOException {
+
+		HtmlTemplate simpleHeader = inline ? EmailScheme.getInlineSimpleHeaderTemplate()
+				: EmailScheme.getSimpleHeaderTemplate();
+		HtmlTemplate bilingualHeader = inline ? EmailScheme.getInlineBilingualHeaderTemplate()
+				: EmailScheme.getBilingualHeaderTemplate();
+		HtmlTemplate nameRow = inline ? EmailScheme.getInlineNameRowTemplate() : EmailScheme.getHtmlNameRowTemplate();
+		HtmlTemplate banimRow = inline ? EmailScheme.getInlineBanimRowTemplate()
+				: EmailScheme.getHtmlBanimRowTemplate();
+
 		// building standard html format: head and opening <body> tag
-		stringBuilder.append(EmailScheme.getHtmlHead());
-		stringBuilder.append(EmailScheme.getHtmlBodyStart());
+		if (inline) {
+			stringBuilder.append(EmailScheme.getInlineListStart());
+		} else {
+			stringBuilder.append(EmailScheme.getHtmlHead());
+			stringBuilder.append(EmailScheme.getHtmlBodyStart());
+		}
 
 		// building headlines and starting table
-		stringBuilder.append(String.format(EmailScheme.getSimpleHeader(), EmailScheme.getInMemoryHebrew()));
-		stringBuilder.append(String.format(EmailScheme.getSimpleHeader(), EmailScheme.getInMemoryEnglish()));
-		stringBuilder.append(weekName);
+		simpleHeader.appendTo(stringBuilder, EmailScheme.getInMemoryHebrew());
+		simpleHeader.appendTo(stringBuilder, EmailScheme.getInMemoryEnglish());
+		HtmlTemplate.appendEscaped(stringBuilder, weekName);
 
-		stringBuilder
-				.append(String.format(EmailScheme.getBilingualHeader(), category.getEnglish(), category.getHebrew()));
-		stringBuilder.append(EmailScheme.getTableStart());
+		bilingualHeader.appendTo(stringBuilder, category.getEnglish(), category.getHebrew());
+		stringBuilder.append(inline ? EmailScheme.getInlineTableStart() : EmailScheme.getTableStart());
 
 		// Running through names, adding them in columns - English and Hebrew
 
 		// banim category prints nusach first, and includes name and spouse name in one
 		// box
 		if (category.getEnglish().equalsIgnoreCase(SchemeValues.banimName)) {
-			stringBuilder.append(String.format(EmailScheme.getHtmlNameRowInList(), EmailScheme.getBanimLineEnglish(),
-					EmailScheme.getBanimLineHebrew()));
+			nameRow.appendTo(stringBuilder, EmailScheme.getBanimLineEnglish(), EmailScheme.getBanimLineHebrew());
 
 			// Inserting in one box both name and spouse name. If spouse name is null (it is
 			// not mandatory), just put an empty string.
 			for (Davenfor d : categoryDavenfors) {
-				stringBuilder.append(String.format(EmailScheme.getHtmlBanimRowInList(), d.getNameEnglish(),
+				banimRow.appendTo(stringBuilder, d.getNameEnglish(),
 						d.getNameEnglishSpouse() != null ? d.getNameEnglishSpouse() : "", d.getNameHebrew(),
-						d.getNameHebrewSpouse() != null ? d.getNameHebrewSpouse() : ""));
+						d.getNameHebrewSpouse() != null ? d.getNameHebrewSpouse() : "");
+				flushChunk(stringBuilder, flushTo);
 			}
 		}
 
 		// All other categories print every name in a single row
 		else {
 			for (Davenfor d : categoryDavenfors) {
-				stringBuilder.append(
-						String.format(EmailScheme.getHtmlNameRowInList(), d.getNameEnglish(), d.getNameHebrew()));
+				nameRow.appendTo(stringBuilder, d.getNameEnglish(), d.getNameHebrew());
+				flushChunk(stringBuilder, flushTo);
 			}
 		}
 
@@ -210,27 +454,28 @@ public class Utilities {
 		stringBuilder.append(EmailScheme.getTableClose());
 
 		// Adding line about next week's category
-		Category nextCategory = getNextCategory(category);
-		stringBuilder.append(
-				String.format(EmailScheme.getNextWeekCategory(), nextCategory.getEnglish(), nextCategory.getHebrew()));
+		(inline ? EmailScheme.getInlineNextWeekCategoryTemplate() : EmailScheme.getNextWeekCategoryTemplate())
+				.appendTo(stringBuilder, nextCategory.getEnglish(), nextCategory.getHebrew());
 
 		// Adding line to email with name and good news.
-		stringBuilder.append(String.format(EmailScheme.getSendGoodNewsMessage(), adminEmail));
+		EmailScheme.getSendGoodNewsTemplate().appendTo(stringBuilder, adminEmail);
 
 		// Closing <body> tag
-		stringBuilder.append(EmailScheme.getHtmlBodyEnd());
-		String finalString = stringBuilder.toString();
-
-		return finalString;
+		stringBuilder.append(inline ? EmailScheme.getInlineListEnd() : EmailScheme.getHtmlBodyEnd());
+	}
 
+	private void flushChunk(StringBuilder stringBuilder, Writer flushTo) throws IOException {
+		if (flushTo != null && stringBuilder.length() >= htmlChunkSize) {
+			flushTo.append(stringBuilder);
+			stringBuilder.setLength(0);
+		}
 	}
 
 	// Creates a button according to varying parameters sent in
 	private static String createButton(String link, String buttonColor, String buttonText) {
 
-		return String.format(
-				"<td style='-webkit-border-radius: 5px; -moz-border-radius: 5px; border-radius: 5px; color: #ffffff; display: block;' align='center' bgcolor=%s width='300' height='40'><a style='font-size: 16px; font-weight: bold; font-family: Helvetica, Arial, sans-serif; text-decoration: none; line-height: 40px;  display: inline-block;' href=%s><span style='color: #ffffff;'>%s</span></a></td>",
-				buttonColor, link, buttonText);
+		// The link is built by our code (with its values escaped already)
+		return EmailScheme.getHtmlButtonTemplate().renderTrusted(buttonColor, link, buttonText);
 
 	}
 }
@@ -0,0 +1,88 @@
+package com.aliza.davening;
+
+import java.util.List;
+
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/*
+ * Holds the weekly list once it was prepared ahead of time (see
+ * MaintainList.preRenderWeekly), so that sending it out is only a matter of
+ * dispatching. Any change to the names, categories or daveners that went into
+ * it invalidates it, and the next send renders afresh.
+ */
+@Component
+public class WeeklyArtifactStore {
+
+	private WeeklyArtifacts current;
+
+	// Bumped on every invalidation, so that a render which started before a change
+	// is not stored after it.
+	private long generation;
+
+	// Generations start over on a restart
+	private final long startedAt = System.currentTimeMillis();
+
+	public synchronized long generation() {
+		return generation;
+	}
+
+	// Changes whenever any list may have changed, on this run or since the last one
+	// (e.g. for the preview's ETag), without loading anything.
+	public synchronized String version() {
+		return startedAt + "-" + generation;
+	}
+
+	// Returns the stored artifacts if they match the category and parasha, or null.
+	public synchronized WeeklyArtifacts get(long categoryId, String parashaName) {
+		if (current != null && current.getCategoryId() == categoryId
+				&& current.getParashaName().equals(parashaName)) {
+			return current;
+		}
+		return null;
+	}
+
+	// Stores the artifacts, unless something changed since their rendering began.
+	public synchronized boolean store(WeeklyArtifacts artifacts, long renderedAtGeneration) {
+		if (renderedAtGeneration != generation) {
+			return false;
+		}
+		current = artifacts;
+		return true;
+	}
+
+	// A name in this category was added, changed or removed.
+	public synchronized void invalidate(long categoryId) {
+		generation++;
+		if (current != null && current.getCategoryId() == categoryId) {
+			current = null;
+		}
+	}
+
+	// Something all lists depend on changed (categories, rotation, daveners).
+	public synchronized void invalidateAll() {
+		generation++;
+		current = null;
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static class WeeklyArtifacts {
+
+		private final long categoryId;
+
+		private final String parashaName;
+
+		private final String fullWeekName;
+
+		private final String html;
+
+		// The encoded png of the list
+		private final byte[] image;
+
+		private final List<String> recipients;
+
+	}
+}
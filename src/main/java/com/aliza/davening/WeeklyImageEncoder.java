@@ -0,0 +1,148 @@
+package com.aliza.davening;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+ * Encodes the painted weekly list as a png. The list is black (anti-aliased)
+ * text on white, so a full colour image carries nothing a grayscale one
+ * wouldn't - and the attachment goes out to every davener, so every byte
+ * counts. The palette is chosen by weekly.image.palette:
+ *   rgb     - the full colour image, as it was always sent
+ *   gray    - 8 bit grayscale, the same picture for a black and white list
+ *   indexed - 16 shades of gray, 4 bits a pixel (the smallest, still smooth text)
+ */
+@Component
+public class WeeklyImageEncoder {
+
+	private final Logger log = LoggerFactory.getLogger(WeeklyImageEncoder.class);
+
+	@Value("${weekly.image.palette:indexed}")
+	private String palette;
+
+	// 0 is the strongest compression, 1 the fastest. Only used where the png writer
+	// supports it (java 9 and up).
+	@Value("${weekly.image.compression:0}")
+	private float compression;
+
+	private static final List<String> palettes = Arrays.asList("rgb", "gray", "indexed");
+
+	private static final int indexedShades = 16;
+
+	// Shared, never changed - a 4 bit palette of evenly spaced grays
+	private static final IndexColorModel grayPalette = buildGrayPalette();
+
+	// A misspelt palette would quietly send full colour images.
+	@PostConstruct
+	private void checkPalette() {
+		if (!palettes.contains(palette.toLowerCase())) {
+			throw new IllegalArgumentException(
+					"weekly.image.palette must be one of " + palettes + ", not '" + palette + "'");
+		}
+	}
+
+	public byte[] encode(BufferedImage image) throws IOException {
+
+		byte[] png = write(quantise(image));
+
+		// Before is the painted image in memory (3 bytes a pixel), which costs nothing
+		// to work out.
+		long raw = (long) image.getWidth() * image.getHeight() * 3;
+		log.info(String.format("Weekly image: %d bytes encoded as %s, from %d bytes raw (%d%%)", png.length,
+				palette, raw, png.length * 100 / Math.max(raw, 1)));
+
+		// Comparing with a full colour png means encoding the image a second time, so
+		// only when debugging.
+		if (log.isDebugEnabled()) {
+			int fullColour = "rgb".equalsIgnoreCase(palette) ? png.length : plainPng(image).length;
+			log.debug(String.format("Weekly image: %d bytes as a full colour png, %d bytes encoded as %s (%d%%)",
+					fullColour, png.length, palette, png.length * 100 / Math.max(fullColour, 1)));
+		}
+		return png;
+	}
+
+	private BufferedImage quantise(BufferedImage image) {
+		if ("gray".equalsIgnoreCase(palette)) {
+			return toGray(image, new BufferedImage(image.getWidth(), image.getHeight(),
+					BufferedImage.TYPE_BYTE_GRAY), 255);
+		}
+		if ("indexed".equalsIgnoreCase(palette)) {
+			return toGray(image, new BufferedImage(image.getWidth(), image.getHeight(),
+					BufferedImage.TYPE_BYTE_BINARY, grayPalette), indexedShades - 1);
+		}
+		return image;
+	}
+
+	/*
+	 * Maps every pixel to the nearest of the given gray levels by its luminance.
+	 * Done by hand rather than by drawing into the target, so that Java2D does not
+	 * dither the edges of the letters.
+	 */
+	private BufferedImage toGray(BufferedImage source, BufferedImage target, int maxLevel) {
+		int width = source.getWidth();
+		int[] row = new int[width];
+		WritableRaster raster = target.getRaster();
+
+		for (int y = 0; y < source.getHeight(); y++) {
+			source.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				int luminance = (299 * ((rgb >> 16) & 0xff) + 587 * ((rgb >> 8) & 0xff) + 114 * (rgb & 0xff)) / 1000;
+				raster.setSample(x, y, 0, (luminance * maxLevel + 127) / 255);
+			}
+		}
+		return target;
+	}
+
+	private byte[] write(BufferedImage image) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+		ImageWriter writer = writers.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(compression);
+		}
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(encoded)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return encoded.toByteArray();
+	}
+
+	// The image as it used to be encoded, only to compare sizes with.
+	private byte[] plainPng(BufferedImage image) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", encoded);
+		return encoded.toByteArray();
+	}
+
+	private static IndexColorModel buildGrayPalette() {
+		byte[] levels = new byte[indexedShades];
+		for (int i = 0; i < indexedShades; i++) {
+			levels[i] = (byte) (i * 255 / (indexedShades - 1));
+		}
+		return new IndexColorModel(4, indexedShades, levels, levels, levels);
+	}
+}
@@ -0,0 +1,189 @@
+package com.aliza.davening;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.AttributedString;
+import java.util.List;
+
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davenfor;
+
+/*
+ * Paints the weekly list straight onto an image with Java2D, laying it out the
+ * same way the html from Utilities.createWeeklyHtml() is laid out (headers,
+ * bilingual category title, name table and next week's line). Unlike painting
+ * through a JEditorPane this needs no screen device, so it works on a headless
+ * server, and there is no html to parse on every render.
+ */
+public class WeeklyImageRenderer {
+
+	// The fonts packaged for the PDF list (see WeeklyPdfRenderer), since a headless
+	// server often has no font with Hebrew in it.
+	private static final Font regularFont = packagedFont("/fonts/DejaVuSans.ttf");
+	private static final Font boldFont = packagedFont("/fonts/DejaVuSans-Bold.ttf");
+
+	// Sizes follow the default Swing html stylesheet that used to paint the list.
+	private static final Font bodyFont = regularFont.deriveFont(14f);
+	private static final Font h2Font = boldFont.deriveFont(24f);
+	private static final Font h3Font = boldFont.deriveFont(18f);
+
+	private static final int margin = 8;
+	private static final int headerSpacing = 10;
+	private static final int cellPadding = 10;
+
+	private enum Align {
+		LEFT, CENTER, RIGHT
+	}
+
+	public BufferedImage render(Category category, String weekName, List<Davenfor> categoryDavenfors,
+			Category nextCategory, String adminEmail) {
+
+		int imageWidth = EmailScheme.getImageWidth();
+		int imageHeight = EmailScheme.getImageHeight();
+
+		BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, imageWidth, imageHeight);
+			g.setColor(Color.BLACK);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+
+			int left = margin;
+			int width = imageWidth - 2 * margin;
+			float y = margin;
+
+			// headlines
+			y = drawHeader(g, EmailScheme.getInMemoryHebrew(), h2Font, left, width, y);
+			y = drawHeader(g, EmailScheme.getInMemoryEnglish(), h2Font, left, width, y);
+			y = drawText(g, weekName, bodyFont, Align.CENTER, left, width, y);
+			y = drawHeader(g, category.getEnglish() + "     " + category.getHebrew(), h2Font, left, width, y);
+
+			// name table - English on the left, Hebrew on the right
+			boolean banim = category.getEnglish().equalsIgnoreCase(SchemeValues.banimName);
+			if (banim) {
+				y = drawRow(g, left, width, y, EmailScheme.getBanimLineEnglish(), null,
+						EmailScheme.getBanimLineHebrew(), null);
+			}
+			for (Davenfor d : categoryDavenfors) {
+				if (y > imageHeight) { // The rest would not be seen anyway.
+					break;
+				}
+				if (banim) {
+					y = drawRow(g, left, width, y, d.getNameEnglish(),
+							d.getNameEnglishSpouse() != null ? d.getNameEnglishSpouse() : "", d.getNameHebrew(),
+							d.getNameHebrewSpouse() != null ? d.getNameHebrewSpouse() : "");
+				} else {
+					y = drawRow(g, left, width, y, d.getNameEnglish(), null, d.getNameHebrew(), null);
+				}
+			}
+
+			// next week's category and closing line
+			if (nextCategory != null) {
+				y = drawHeader(g, String.format(EmailScheme.getNextWeekCategoryText(),
+						nextCategory.getEnglish(), nextCategory.getHebrew()), h3Font, left, width, y);
+			}
+			drawText(g, String.format(EmailScheme.getSendGoodNewsMessage(), adminEmail), bodyFont, Align.CENTER,
+					left, width, y);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	private float drawHeader(Graphics2D g, String text, Font font, int left, int width, float y) {
+		y += headerSpacing;
+		y = drawText(g, text, font, Align.CENTER, left, width, y);
+		return y + headerSpacing;
+	}
+
+	// Draws a table row of two cells, each holding one or two lines (the second is
+	// for the spouse name in Zera Shel Kayama), and returns where the row ends.
+	private float drawRow(Graphics2D g, int left, int width, float y, String english, String englishSecond,
+			String hebrew, String hebrewSecond) {
+
+		int cellWidth = width / 2;
+		int textWidth = cellWidth - 2 * cellPadding;
+
+		float englishBottom = drawCell(g, english, englishSecond, Align.LEFT, left + cellPadding, textWidth,
+				y + cellPadding);
+		float hebrewBottom = drawCell(g, hebrew, hebrewSecond, Align.RIGHT, left + cellWidth + cellPadding,
+				textWidth, y + cellPadding);
+		float bottom = Math.max(englishBottom, hebrewBottom) + cellPadding;
+
+		// collapsed 1px borders, as in the html table
+		int top = Math.round(y);
+		int height = Math.round(bottom) - top;
+		g.drawRect(left, top, cellWidth, height);
+		g.drawRect(left + cellWidth, top, width - cellWidth, height);
+
+		return bottom;
+	}
+
+	private float drawCell(Graphics2D g, String first, String second, Align align, int left, int width, float y) {
+		y = drawText(g, first, bodyFont, align, left, width, y);
+		if (second != null) {
+			y = drawText(g, second, bodyFont, align, left, width, y);
+		}
+		return y;
+	}
+
+	/*
+	 * Draws text wrapped to the given width. TextLayout takes care of the
+	 * direction of every run, so Hebrew (and Hebrew mixed with English) comes out
+	 * right to left.
+	 */
+	private float drawText(Graphics2D g, String text, Font font, Align align, int left, int width, float y) {
+		if (text == null || text.isEmpty()) {
+			return y + g.getFontMetrics(font).getHeight();
+		}
+
+		AttributedString attributed = new AttributedString(text);
+		attributed.addAttribute(TextAttribute.FONT, font);
+
+		FontRenderContext frc = g.getFontRenderContext();
+		LineBreakMeasurer measurer = new LineBreakMeasurer(attributed.getIterator(), frc);
+
+		while (measurer.getPosition() < text.length()) {
+			TextLayout line = measurer.nextLayout(width);
+			y += line.getAscent();
+
+			float x;
+			switch (align) {
+			case RIGHT:
+				x = left + width - line.getAdvance();
+				break;
+			case CENTER:
+				x = left + (width - line.getAdvance()) / 2;
+				break;
+			default:
+				x = left;
+			}
+			line.draw(g, x, y);
+			y += line.getDescent() + line.getLeading();
+		}
+		return y;
+	}
+
+	private static Font packagedFont(String resource) {
+		try (InputStream in = WeeklyImageRenderer.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IllegalStateException("Font " + resource + " is missing from the classpath");
+			}
+			return Font.createFont(Font.TRUETYPE_FONT, in);
+		} catch (IOException | FontFormatException e) {
+			throw new IllegalStateException("Could not load font " + resource, e);
+		}
+	}
+}
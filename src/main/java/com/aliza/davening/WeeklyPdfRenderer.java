@@ -0,0 +1,229 @@
+package com.aliza.davening;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.Bidi;
+import java.text.BreakIterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davenfor;
+import com.itextpdf.io.font.FontProgram;
+import com.itextpdf.io.font.FontProgramFactory;
+import com.itextpdf.io.font.PdfEncodings;
+import com.itextpdf.kernel.font.PdfFont;
+import com.itextpdf.kernel.font.PdfFontFactory;
+import com.itextpdf.kernel.geom.PageSize;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.WriterProperties;
+import com.itextpdf.layout.Document;
+import com.itextpdf.layout.element.Cell;
+import com.itextpdf.layout.element.Paragraph;
+import com.itextpdf.layout.element.Table;
+import com.itextpdf.layout.properties.TextAlignment;
+import com.itextpdf.layout.properties.UnitValue;
+
+/*
+ * Builds the weekly list as a PDF, laid out like the image (headers, bilingual
+ * category title, name table and next week's line). Unlike the fixed size
+ * image, a long list simply continues on the next page, and the text stays
+ * text, which keeps big lists much smaller than a picture of them.
+ */
+@Component
+public class WeeklyPdfRenderer {
+
+	// Fonts must include Hebrew. Any Spring resource location works (file:,
+	// classpath:). DejaVu Sans is packaged with the application.
+	@Value("${weekly.pdf.font:classpath:fonts/DejaVuSans.ttf}")
+	private String regularFontLocation;
+
+	@Value("${weekly.pdf.font.bold:classpath:fonts/DejaVuSans-Bold.ttf}")
+	private String boldFontLocation;
+
+	@Autowired
+	private ResourceLoader resourceLoader;
+
+	// Font programs are parsed once and shared by all renders. A PdfFont belongs to
+	// one document, so those are made per render.
+	private FontProgram regularFontProgram;
+
+	private FontProgram boldFontProgram;
+
+	private static final float bodySize = 12;
+	private static final float cellPadding = 8;
+
+	public byte[] render(Category category, String weekName, List<Davenfor> categoryDavenfors, Category nextCategory,
+			String adminEmail) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PdfDocument pdf = new PdfDocument(new PdfWriter(out, new WriterProperties().setFullCompressionMode(true)));
+		Document document = new Document(pdf, PageSize.A4);
+
+		// Embedded as subsets - only the glyphs used in this list go into the file.
+		PdfFont regular = PdfFontFactory.createFont(getRegularFontProgram(), PdfEncodings.IDENTITY_H,
+				PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
+		regular.setSubset(true);
+		PdfFont bold = PdfFontFactory.createFont(getBoldFontProgram(), PdfEncodings.IDENTITY_H,
+				PdfFontFactory.EmbeddingStrategy.FORCE_EMBEDDED);
+		bold.setSubset(true);
+
+		document.setFont(regular).setFontSize(bodySize);
+		float pageWidth = PageSize.A4.getWidth() - document.getLeftMargin() - document.getRightMargin();
+		float cellWidth = pageWidth / 2 - 2 * cellPadding - 2;
+
+		// headlines
+		document.add(header(EmailScheme.getInMemoryHebrew(), bold, 18, pageWidth));
+		document.add(header(EmailScheme.getInMemoryEnglish(), bold, 18, pageWidth));
+		document.add(new Paragraph(visualLines(weekName, regular, bodySize, pageWidth))
+				.setTextAlignment(TextAlignment.CENTER));
+		document.add(header(category.getEnglish() + "     " + category.getHebrew(), bold, 18, pageWidth));
+
+		// name table - English on the left, Hebrew on the right. Rows that do not fit
+		// go on to the next page.
+		Table table = new Table(UnitValue.createPercentArray(new float[] { 1, 1 })).useAllAvailableWidth();
+		boolean banim = category.getEnglish().equalsIgnoreCase(SchemeValues.banimName);
+		if (banim) {
+			addRow(table, EmailScheme.getBanimLineEnglish(),
+					visualLines(EmailScheme.getBanimLineHebrew(), regular, bodySize, cellWidth));
+			for (Davenfor d : categoryDavenfors) {
+				addRow(table,
+						d.getNameEnglish() + "\n"
+								+ (d.getNameEnglishSpouse() != null ? d.getNameEnglishSpouse() : ""),
+						visualLines(d.getNameHebrew(), regular, bodySize, cellWidth) + "\n"
+								+ (d.getNameHebrewSpouse() != null
+										? visualLines(d.getNameHebrewSpouse(), regular, bodySize, cellWidth)
+										: ""));
+			}
+		} else {
+			for (Davenfor d : categoryDavenfors) {
+				addRow(table, d.getNameEnglish(), visualLines(d.getNameHebrew(), regular, bodySize, cellWidth));
+			}
+		}
+		document.add(table);
+
+		// next week's category and closing line
+		if (nextCategory != null) {
+			document.add(header(String.format(EmailScheme.getNextWeekCategoryText(), nextCategory.getEnglish(),
+					nextCategory.getHebrew()), bold, 14, pageWidth));
+		}
+		document.add(new Paragraph(String.format(EmailScheme.getSendGoodNewsMessage(), adminEmail))
+				.setTextAlignment(TextAlignment.CENTER));
+
+		document.close();
+		return out.toByteArray();
+	}
+
+	private Paragraph header(String text, PdfFont font, float size, float width) {
+		return new Paragraph(visualLines(text, font, size, width)).setFont(font).setFontSize(size)
+				.setTextAlignment(TextAlignment.CENTER);
+	}
+
+	// The Hebrew cell comes in already in visual order.
+	private void addRow(Table table, String english, String hebrew) {
+		table.addCell(new Cell().add(new Paragraph(english)).setTextAlignment(TextAlignment.LEFT)
+				.setPadding(cellPadding));
+		table.addCell(new Cell().add(new Paragraph(hebrew)).setTextAlignment(TextAlignment.RIGHT)
+				.setPadding(cellPadding));
+	}
+
+	/*
+	 * iText lays text out left to right, and would wrap text that was put in
+	 * visual order as a whole the wrong way round (the end of a long name on the
+	 * first line). So text with Hebrew in it is broken into lines here, at
+	 * spaces, in reading order, and each line is put in visual order on its own.
+	 * A single word wider than the line is still wrapped by iText.
+	 */
+	static String visualLines(String text, PdfFont font, float size, float width) {
+		if (text == null || text.isEmpty() || new Bidi(text, Bidi.DIRECTION_DEFAULT_LEFT_TO_RIGHT).isLeftToRight()) {
+			return text;
+		}
+		StringBuilder lines = new StringBuilder(text.length() + 8);
+		StringBuilder line = new StringBuilder();
+		for (String word : text.split(" ")) {
+			if (line.length() > 0 && font.getWidth(line + " " + word, size) > width) {
+				lines.append(visualOrder(line.toString())).append('\n');
+				line.setLength(0);
+			}
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			line.append(word);
+		}
+		return lines.append(visualOrder(line.toString())).toString();
+	}
+
+	/*
+	 * One line in visual order: every right-to-left run reversed, and the runs
+	 * arranged by their bidi levels. Runs are reversed a character (as the reader
+	 * sees it) at a time, so niqqud and other combining marks stay after the
+	 * letter they belong to.
+	 */
+	static String visualOrder(String text) {
+		if (text == null || text.isEmpty()) {
+			return text;
+		}
+		Bidi bidi = new Bidi(text, Bidi.DIRECTION_DEFAULT_LEFT_TO_RIGHT);
+		if (bidi.isLeftToRight()) {
+			return text;
+		}
+
+		int runCount = bidi.getRunCount();
+		byte[] levels = new byte[runCount];
+		String[] runs = new String[runCount];
+		for (int i = 0; i < runCount; i++) {
+			String run = text.substring(bidi.getRunStart(i), bidi.getRunLimit(i));
+			levels[i] = (byte) bidi.getRunLevel(i);
+			runs[i] = levels[i] % 2 == 1 ? reverseCharacters(run) : run;
+		}
+		Bidi.reorderVisually(levels, 0, runs, 0, runCount);
+
+		StringBuilder visual = new StringBuilder(text.length());
+		for (String run : runs) {
+			visual.append(run);
+		}
+		return visual.toString();
+	}
+
+	private static String reverseCharacters(String run) {
+		BreakIterator characters = BreakIterator.getCharacterInstance(new Locale("he"));
+		characters.setText(run);
+		StringBuilder reversed = new StringBuilder(run.length());
+		int end = characters.last();
+		int start = characters.previous();
+		while (start != BreakIterator.DONE) {
+			reversed.append(run, start, end);
+			end = start;
+			start = characters.previous();
+		}
+		return reversed.toString();
+	}
+
+	private synchronized FontProgram getRegularFontProgram() throws IOException {
+		if (regularFontProgram == null) {
+			regularFontProgram = loadFontProgram(regularFontLocation);
+		}
+		return regularFontProgram;
+	}
+
+	private synchronized FontProgram getBoldFontProgram() throws IOException {
+		if (boldFontProgram == null) {
+			boldFontProgram = loadFontProgram(boldFontLocation);
+		}
+		return boldFontProgram;
+	}
+
+	private FontProgram loadFontProgram(String location) throws IOException {
+		try (InputStream in = resourceLoader.getResource(location).getInputStream()) {
+			return FontProgramFactory.createFont(StreamUtils.copyToByteArray(in));
+		}
+	}
+}
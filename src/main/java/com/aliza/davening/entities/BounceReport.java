@@ -0,0 +1,23 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//What one pass over the bounce mailbox found (see BounceProcessor).
+@Getter
+@AllArgsConstructor
+public class BounceReport {
+
+	// Messages read from the mailbox, delivery reports or not
+	private final int messages;
+
+	// Addresses the mail server gave up on for good (5.x.x)
+	private final int hardBounces;
+
+	// Addresses that failed for now, and are left active (4.x.x)
+	private final int softBounces;
+
+	// Active daveners among the hard bounces, now deactivated
+	private final int deactivated;
+
+}
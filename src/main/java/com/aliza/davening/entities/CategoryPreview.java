@@ -0,0 +1,27 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//One category's list as previewed on the admin dashboard, with how long it took to build.
+@Getter
+@AllArgsConstructor
+public class CategoryPreview {
+
+	private final long categoryId;
+
+	private final String english;
+
+	private final String hebrew;
+
+	private final String html;
+
+	// The png of the list, only when images were asked for (base64 in json)
+	private final byte[] image;
+
+	// Why the list could not be built (e.g. there are no names in it), otherwise null
+	private final String error;
+
+	private final long millis;
+
+}
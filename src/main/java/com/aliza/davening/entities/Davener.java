@@ -1,12 +1,25 @@
 package com.aliza.davening.entities;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.Table;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.Pattern;
 
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -20,6 +33,8 @@ import lombok.ToString;
 @ToString
 
 @Entity
+// Daveners are looked up and deactivated by email (e.g. unsubscribe links)
+@Table(indexes = @Index(name = "idx_davener_email", columnList = "email"))
 public class Davener {
 
 	@Id
@@ -39,4 +54,18 @@ public class Davener {
 	// Does davener want to accept weekly davening list and alerts?
 	private boolean active = true;
 
+	/*
+	 * The ids of the categories whose weekly lists and urgent names the davener
+	 * gets. Empty means all of them (as every davener got before there was a
+	 * choice).
+	 */
+	@ElementCollection(fetch = FetchType.EAGER)
+	@Fetch(FetchMode.SUBSELECT)
+	@CollectionTable(name = "davener_category", joinColumns = @JoinColumn(name = "davener_id"))
+	@Column(name = "category_id")
+	private Set<Long> categories = new HashSet<Long>();
+
+	// Only the weekly lists, without urgent names
+	private boolean weeklyOnly;
+
 }
@@ -0,0 +1,54 @@
+package com.aliza.davening.entities;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/*
+ * A batch of an outbox email that could not be sent - either the mail server
+ * refused it for good, or it kept failing until it ran out of retries. Kept
+ * until an admin replays it (see MailDispatcher.replayDeadLetters).
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString(exclude = "recipients")
+
+@Entity
+public class DeadLetter {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long id;
+
+	private long emailId;
+
+	private long batchId;
+
+	private String subject;
+
+	// The batch's bcc addresses, comma separated
+	@Lob
+	private String recipients;
+
+	private int attempts;
+
+	private String error;
+
+	private LocalDateTime failedAt = LocalDateTime.now();
+
+	// Set once the batch was queued again
+	private LocalDateTime replayedAt;
+
+}
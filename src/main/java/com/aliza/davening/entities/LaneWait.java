@@ -0,0 +1,22 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//How long a mail lane's batches waited for a worker, since the application started.
+@Getter
+@AllArgsConstructor
+public class LaneWait {
+
+	private final MailPriority lane;
+
+	// Batches handed to the workers and not started yet
+	private final int waiting;
+
+	private final long started;
+
+	private final double averageWaitMillis;
+
+	private final double maxWaitMillis;
+
+}
@@ -0,0 +1,37 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//How much of its sending budget a mail lane has left. A limit of 0 means unlimited.
+@Getter
+@AllArgsConstructor
+public class MailBudget {
+
+	private final MailPriority lane;
+
+	private final double messagesPerSecond;
+
+	private final double messagesAvailableThisSecond;
+
+	private final double recipientsPerSecond;
+
+	private final double recipientsAvailableThisSecond;
+
+	private final double messagesPerDay;
+
+	private final double messagesAvailableToday;
+
+	private final double recipientsPerDay;
+
+	private final double recipientsAvailableToday;
+
+	// Since the application started
+	private final long messagesSent;
+
+	private final long recipientsSent;
+
+	// Times a batch had to wait for the budget
+	private final long deferred;
+
+}
@@ -0,0 +1,21 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//How the SMTP connections have been doing since the application started.
+@Getter
+@AllArgsConstructor
+public class MailMetrics {
+
+	// New connections opened (TCP, TLS and login)
+	private final long handshakes;
+
+	private final long messages;
+
+	// Average time to send one message over an open connection
+	private final double averageMillis;
+
+	private final int idleConnections;
+
+}
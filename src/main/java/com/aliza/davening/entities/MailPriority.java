@@ -0,0 +1,15 @@
+package com.aliza.davening.entities;
+
+//The lane an outgoing email travels in, each with its own sending budget
+public enum MailPriority {
+
+	// Urgent davening requests
+	URGENT,
+
+	// Confirmations and notices to the admin or a single davener
+	TRANSACTIONAL,
+
+	// The weekly list and expiry notices
+	BULK
+
+}
@@ -0,0 +1,72 @@
+package com.aliza.davening.entities;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/*
+ * One share of an outbox email's recipients, sent as a message of its own. A
+ * long bcc list is split into batches so that no message runs into the mail
+ * provider's recipient limit, and a bad address fails only its own batch.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString(exclude = "recipients")
+
+@Entity
+public class OutboundBatch {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long id;
+
+	// The OutboundEmail this batch belongs to
+	private long emailId;
+
+	// The first batch also goes to the email's 'to' address
+	private boolean first;
+
+	// Bcc addresses, comma separated
+	@Lob
+	@JsonIgnore
+	private String recipients;
+
+	private int recipientCount;
+
+	// The email's priority, for sending it in the right lane
+	@Enumerated(EnumType.STRING)
+	private MailPriority priority = MailPriority.BULK;
+
+	@Enumerated(EnumType.STRING)
+	private OutboundStatus status = OutboundStatus.QUEUED;
+
+	private int attempts;
+
+	// Why the last attempt failed
+	private String error;
+
+	// A batch that failed for a passing reason waits until then to be retried
+	private LocalDateTime nextAttemptAt;
+
+	// When a worker took it. A batch left SENDING for too long is queued again.
+	private LocalDateTime claimedAt;
+
+	private LocalDateTime sentAt;
+
+}
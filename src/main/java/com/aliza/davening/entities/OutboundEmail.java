@@ -0,0 +1,78 @@
+package com.aliza.davening.entities;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Transient;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/*
+ * An email waiting in (or already sent from) the outbox. Emails are saved here
+ * first and sent by MailDispatcher in the background, so that a slow mail
+ * server holds up neither the request nor the scheduled jobs, and nothing
+ * queued is lost on a restart. Its recipients are kept in OutboundBatches.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString(exclude = { "message", "attachment", "batches" })
+
+@Entity
+public class OutboundEmail {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long id;
+
+	private String subject;
+
+	@Lob
+	@JsonIgnore
+	private String message;
+
+	private String recipient;
+
+	@Lob
+	@JsonIgnore
+	private byte[] attachment;
+
+	private String attachmentName;
+
+	@Enumerated(EnumType.STRING)
+	private MailPriority priority = MailPriority.BULK;
+
+	// Sent to the daveners, so it carries List-Unsubscribe headers
+	private boolean listMail;
+
+	@Enumerated(EnumType.STRING)
+	private OutboundStatus status = OutboundStatus.QUEUED;
+
+	// How many of the batches failed, if any did
+	private String error;
+
+	private LocalDateTime createdAt = LocalDateTime.now();
+
+	// When the last batch went out
+	private LocalDateTime sentAt;
+
+	// The recipients split into batches, each sent on its own (filled in when the
+	// email is looked up, see MailDispatcher.findEmail)
+	@Transient
+	private List<OutboundBatch> batches;
+
+}
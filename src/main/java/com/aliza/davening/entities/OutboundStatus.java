@@ -0,0 +1,20 @@
+package com.aliza.davening.entities;
+
+//Where an email in the outbox stands
+public enum OutboundStatus {
+
+	// Waiting for a worker to pick it up
+	QUEUED,
+
+	// Picked up by a worker and being sent right now
+	SENDING,
+
+	SENT,
+
+	FAILED,
+
+	// Written to the spool because the mail server could not be reached, to be
+	// sent from there (see MailSpool)
+	SPOOLED
+
+}
@@ -0,0 +1,27 @@
+package com.aliza.davening.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//Messages waiting in the mail spool, for when the mail server could not be reached.
+@Getter
+@AllArgsConstructor
+public class SpoolStatus {
+
+	// Messages waiting to be sent
+	private final int depth;
+
+	private final long bytes;
+
+	// How long the oldest waiting message has been there
+	private final long oldestAgeSeconds;
+
+	// Since startup
+	private final long spooled;
+
+	private final long replayed;
+
+	// Rounds of syncing the spool to disk, each for one or more messages
+	private final long syncs;
+
+}
@@ -18,4 +18,6 @@ public class Weekly {
     public String fullWeekName;
     public long categoryId;
     public String message;
+    // If not specified, sent as an image
+    public WeeklyFormat format;
 }
@@ -0,0 +1,15 @@
+package com.aliza.davening.entities;
+
+//How the weekly list is sent out
+public enum WeeklyFormat {
+
+	// The list attached as a png image (the default)
+	IMAGE,
+
+	// The list attached as a PDF, which can run over several pages
+	PDF,
+
+	// The list itself as the email body, with no attachment
+	INLINE
+
+}
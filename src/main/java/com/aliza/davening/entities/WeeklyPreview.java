@@ -0,0 +1,21 @@
+package com.aliza.davening.entities;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//Everything a weekly preview is built from, loaded once.
+@Getter
+@AllArgsConstructor
+public class WeeklyPreview {
+
+	private final Category category;
+
+	private final String parashaName;
+
+	private final List<Davenfor> davenfors;
+
+	private final Category nextCategory;
+
+}
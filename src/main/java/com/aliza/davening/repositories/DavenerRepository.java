@@ -1,5 +1,6 @@
 package com.aliza.davening.repositories;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.transaction.Transactional;
@@ -22,11 +23,26 @@ public interface DavenerRepository extends JpaRepository<Davener, Long> {
 	 @Query("update Davener d set d.active=false where email=?1")
 	 public void disactivateDavener(String email);
 	 
+	 // Many at once (e.g. addresses that bounced), in one statement and without
+	 // notifying them. Returns how many were active.
+	 @Modifying
+	 @Transactional
+	 @Query("update Davener d set d.active=false where d.email in ?1 and d.active=true")
+	 public int disactivateDaveners(Collection<String> emails);
+	 
 	 @Modifying
 	 @Transactional
 	 @Query("update Davener d set d.active=true where email=?1")
 	 public void activateDavener(String email);
 	 
+	 // For DavenerSegments: id, email, active and weeklyOnly of every davener
+	 @Query("select d.id, d.email, d.active, d.weeklyOnly from Davener d")
+	 List<Object[]> getAllDavenerSettings();
+	 
+	 // For DavenerSegments: pairs of davener id and subscribed category id
+	 @Query("select d.id, c from Davener d join d.categories c")
+	 List<Object[]> getAllDavenerCategories();
+	 
 	 Davener findByEmail(String email);
 	 
 	 List<Davener> findAll();
@@ -0,0 +1,25 @@
+package com.aliza.davening.repositories;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import javax.transaction.Transactional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import com.aliza.davening.entities.DeadLetter;
+
+@Repository
+public interface DeadLetterRepository extends JpaRepository<DeadLetter, Long> {
+
+	List<DeadLetter> findByReplayedAtIsNullOrderById();
+
+	@Modifying
+	@Transactional
+	@Query("update DeadLetter d set d.replayedAt=?2 where d.batchId in ?1 and d.replayedAt is null")
+	void markReplayed(List<Long> batchIds, LocalDateTime replayedAt);
+
+}
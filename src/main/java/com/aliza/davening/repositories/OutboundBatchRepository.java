@@ -0,0 +1,91 @@
+package com.aliza.davening.repositories;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import javax.transaction.Transactional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import com.aliza.davening.entities.OutboundBatch;
+import com.aliza.davening.entities.OutboundStatus;
+
+@Repository
+public interface OutboundBatchRepository extends JpaRepository<OutboundBatch, Long> {
+
+	List<OutboundBatch> findByEmailIdOrderById(long emailId);
+
+	// Queued batches, leaving out those waiting to be retried later
+	@Query("select b from OutboundBatch b where b.status=com.aliza.davening.entities.OutboundStatus.QUEUED and (b.nextAttemptAt is null or b.nextAttemptAt<=?1) order by b.id")
+	List<OutboundBatch> findDue(LocalDateTime now);
+
+	@Query("select b.id from OutboundBatch b where b.emailId=?1 and b.status=?2 order by b.id")
+	List<Long> findIdsByEmailIdAndStatus(long emailId, OutboundStatus status);
+
+	@Query("select b.id from OutboundBatch b where b.status=?1")
+	List<Long> findIdsByStatus(OutboundStatus status);
+
+	@Query("select b.status from OutboundBatch b where b.emailId=?1")
+	List<OutboundStatus> findStatusesByEmailId(long emailId);
+
+	// Changes the status only if it is still the expected one, so that two workers
+	// never take the same batch.
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=?3 where b.id=?1 and b.status=?2")
+	int changeStatus(long id, OutboundStatus from, OutboundStatus to);
+
+	// Taken by a worker, if no other worker took it first
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.SENDING, b.claimedAt=?2 where b.id=?1 and b.status=com.aliza.davening.entities.OutboundStatus.QUEUED")
+	int claim(long id, LocalDateTime claimedAt);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=?2 where b.status=?1")
+	int changeAllStatus(OutboundStatus from, OutboundStatus to);
+
+	// Batches whose worker never wrote an outcome (no claim time: taken before
+	// claims were timed)
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.QUEUED, b.nextAttemptAt=null where b.status=com.aliza.davening.entities.OutboundStatus.SENDING and (b.claimedAt is null or b.claimedAt<?1)")
+	int requeueClaimedBefore(LocalDateTime before);
+
+	// Queued again from scratch, with a fresh count of attempts
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.QUEUED, b.attempts=0, b.nextAttemptAt=null where b.id in ?1 and b.status=com.aliza.davening.entities.OutboundStatus.FAILED")
+	int requeueFailed(List<Long> ids);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.QUEUED, b.attempts=b.attempts+1, b.error=?2, b.nextAttemptAt=?3 where b.id=?1")
+	void scheduleRetry(long id, String error, LocalDateTime nextAttemptAt);
+
+	// Put back without counting an attempt, e.g. to wait for the sending budget
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.QUEUED, b.nextAttemptAt=?2 where b.id=?1")
+	void defer(long id, LocalDateTime nextAttemptAt);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.SENT, b.sentAt=?2, b.attempts=b.attempts+1, b.error=null where b.id=?1")
+	void markSent(long id, LocalDateTime sentAt);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.FAILED, b.attempts=b.attempts+1, b.error=?2 where b.id=?1")
+	void markFailed(long id, String error);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundBatch b set b.status=com.aliza.davening.entities.OutboundStatus.SPOOLED, b.attempts=b.attempts+1, b.error=?2 where b.id=?1")
+	void markSpooled(long id, String error);
+
+}
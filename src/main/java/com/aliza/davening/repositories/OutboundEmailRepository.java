@@ -0,0 +1,45 @@
+package com.aliza.davening.repositories;
+
+import java.time.LocalDateTime;
+
+import javax.transaction.Transactional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import com.aliza.davening.entities.OutboundEmail;
+import com.aliza.davening.entities.OutboundStatus;
+
+@Repository
+public interface OutboundEmailRepository extends JpaRepository<OutboundEmail, Long> {
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundEmail e set e.status=?2, e.sentAt=?3, e.error=?4 where e.id=?1")
+	void setOutcome(long id, OutboundStatus status, LocalDateTime sentAt, String error);
+
+	// Its first batch was taken by a worker
+	@Modifying
+	@Transactional
+	@Query("update OutboundEmail e set e.status=com.aliza.davening.entities.OutboundStatus.SENDING where e.id=?1 and e.status=com.aliza.davening.entities.OutboundStatus.QUEUED")
+	int markSending(long id);
+
+	/*
+	 * The outcome is decided from the batches in the same statement that records
+	 * it, so that two batches finishing at once can't leave a stale status behind:
+	 * sent once every batch is sent, failed once every batch is sent or failed and
+	 * at least one failed. Returns 0 if the batches aren't all done.
+	 */
+	@Modifying
+	@Transactional
+	@Query("update OutboundEmail e set e.status=com.aliza.davening.entities.OutboundStatus.SENT, e.sentAt=?2, e.error=null where e.id=?1 and not exists (select b.id from OutboundBatch b where b.emailId=?1 and b.status<>com.aliza.davening.entities.OutboundStatus.SENT)")
+	int markSentIfDone(long id, LocalDateTime sentAt);
+
+	@Modifying
+	@Transactional
+	@Query("update OutboundEmail e set e.status=com.aliza.davening.entities.OutboundStatus.FAILED, e.sentAt=null, e.error=?2 where e.id=?1 and exists (select b.id from OutboundBatch b where b.emailId=?1 and b.status=com.aliza.davening.entities.OutboundStatus.FAILED) and not exists (select b.id from OutboundBatch b where b.emailId=?1 and b.status<>com.aliza.davening.entities.OutboundStatus.SENT and b.status<>com.aliza.davening.entities.OutboundStatus.FAILED)")
+	int markFailedIfDone(long id, String error);
+
+}
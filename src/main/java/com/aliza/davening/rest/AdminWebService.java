@@ -4,27 +4,41 @@ import java.io.IOException;
 import java.util.List;
 
 import javax.mail.MessagingException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.aliza.davening.MaintainList;
 import com.aliza.davening.Utilities;
 import com.aliza.davening.entities.Admin;
+import com.aliza.davening.entities.BounceReport;
 import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.CategoryPreview;
 import com.aliza.davening.entities.Davener;
 import com.aliza.davening.entities.Davenfor;
+import com.aliza.davening.entities.DeadLetter;
+import com.aliza.davening.entities.LaneWait;
+import com.aliza.davening.entities.MailBudget;
+import com.aliza.davening.entities.MailMetrics;
+import com.aliza.davening.entities.OutboundEmail;
 import com.aliza.davening.entities.Parasha;
+import com.aliza.davening.entities.SpoolStatus;
 import com.aliza.davening.entities.Weekly;
+import com.aliza.davening.entities.WeeklyPreview;
 import com.aliza.davening.exceptions.DatabaseException;
 import com.aliza.davening.exceptions.EmailException;
 import com.aliza.davening.exceptions.EmptyInformationException;
@@ -32,7 +46,11 @@ import com.aliza.davening.exceptions.NoRelatedEmailException;
 import com.aliza.davening.exceptions.ObjectNotFoundException;
 import com.aliza.davening.exceptions.PermissionException;
 import com.aliza.davening.services.AdminService;
+import com.aliza.davening.services.BounceProcessor;
 import com.aliza.davening.services.EmailSender;
+import com.aliza.davening.services.MailDispatcher;
+import com.aliza.davening.services.MailRateLimiter;
+import com.aliza.davening.services.SmtpTransportPool;
 import com.itextpdf.text.DocumentException;
 
 @RestController
@@ -46,6 +64,18 @@ public class AdminWebService {
 	@Autowired
 	EmailSender emailSender;
 
+	@Autowired
+	MailDispatcher mailDispatcher;
+
+	@Autowired
+	SmtpTransportPool transportPool;
+
+	@Autowired
+	MailRateLimiter rateLimiter;
+
+	@Autowired
+	BounceProcessor bounceProcessor;
+
 	@PostMapping(path = "new")
 	public boolean setAdmin(@RequestBody Admin admin) throws DatabaseException, EmptyInformationException {
 		adminService.setAdmin(admin);
@@ -104,17 +134,61 @@ public class AdminWebService {
 		return adminService.activateDavener(davenerEmail);
 	}
 
+	// Returns as soon as the list is queued - the id can be looked up in the outbox.
 	@PostMapping(path = "weekly")
-	public boolean sendOutWeekly(@RequestBody Weekly weeklyInfo) throws EmptyInformationException, IOException,
+	public long sendOutWeekly(@RequestBody Weekly weeklyInfo) throws EmptyInformationException, IOException,
 			MessagingException, EmailException, DocumentException, DatabaseException, ObjectNotFoundException {
-		emailSender.sendOutWeekly(weeklyInfo);
-		return true;
+		return emailSender.sendOutWeekly(weeklyInfo);
 	}
 
-	@PostMapping(path = "preview", produces = "text/plain")
-	public String previewWeekly(@RequestBody Weekly weeklyInfo) throws EmptyInformationException, IOException,
-			MessagingException, EmailException, DocumentException, DatabaseException, ObjectNotFoundException {
-		return adminService.previewWeekly(weeklyInfo);
+	/*
+	 * Streams the preview into the response. The ETag follows every change that
+	 * could alter the list (see AdminService.weeklyPreviewTag), so a preview that
+	 * has not changed since the admin last saw it is answered with 304 before any
+	 * names are loaded.
+	 */
+	@GetMapping(path = "preview", produces = "text/plain")
+	public void previewWeekly(@RequestParam("categoryId") long categoryId,
+			@RequestParam("parashaName") String parashaName, HttpServletRequest request, HttpServletResponse response)
+			throws EmptyInformationException, IOException, ObjectNotFoundException {
+
+		String etag = "\"" + adminService.weeklyPreviewTag(categoryId, parashaName) + "\"";
+		response.setHeader(HttpHeaders.ETAG, etag);
+		// Checked again on every use rather than cached for a while
+		response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+		if (etagMatches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+			response.setStatus(HttpStatus.NOT_MODIFIED.value());
+			return;
+		}
+
+		WeeklyPreview preview = adminService.prepareWeeklyPreview(categoryId, parashaName);
+		response.setContentType("text/plain;charset=UTF-8");
+		adminService.writeWeeklyPreview(preview, response.getWriter());
+	}
+
+	// Previews all categories in one go, for checking them all before a rotation.
+	@PostMapping(path = "preview/all")
+	public List<CategoryPreview> previewAllCategories(@RequestBody Weekly weeklyInfo,
+			@RequestParam(name = "images", defaultValue = "false") boolean images) {
+		return adminService.previewAllCategories(weeklyInfo.parashaName, images);
+	}
+
+	// If-None-Match may hold a list of ETags, possibly weak ones (W/"...").
+	private boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || candidate.equals("*")) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	// A simplified sendOutWeekly which takes a GET request (for the one sent
@@ -127,9 +201,63 @@ public class AdminWebService {
 	}
 
 	@PostMapping(path = "urgent")
-	public boolean sendOutUrgent(@RequestBody Davenfor davenfor) throws EmailException, EmptyInformationException {
-		emailSender.sendUrgentEmail(davenfor);
-		return true;
+	public long sendOutUrgent(@RequestBody Davenfor davenfor) throws EmailException, EmptyInformationException {
+		return emailSender.sendUrgentEmail(davenfor);
+	}
+
+	// Where a queued email stands (queued, sending, sent or failed), batch by batch
+	@RequestMapping(path = "outbox/{id}")
+	public OutboundEmail getOutboundEmail(@PathVariable long id) throws ObjectNotFoundException {
+		return mailDispatcher.findEmail(id);
+	}
+
+	// Each mail lane's sending limits and what is left of them
+	@RequestMapping(path = "mail/limits")
+	public List<MailBudget> getMailBudgets() {
+		return rateLimiter.getBudgets();
+	}
+
+	// How long each lane's mail (urgent, transactional, bulk) waits to be sent
+	@RequestMapping(path = "mail/lanes")
+	public List<LaneWait> getLaneWaits() {
+		return mailDispatcher.getLaneWaits();
+	}
+
+	// Batches of emails that could not be sent, and were not replayed yet
+	@RequestMapping(path = "deadletters")
+	public List<DeadLetter> findDeadLetters() {
+		return mailDispatcher.findDeadLetters();
+	}
+
+	// Sends the given dead letters again (all of them, if no ids are given)
+	@PostMapping(path = "deadletters/replay")
+	public int replayDeadLetters(@RequestBody(required = false) List<Long> deadLetterIds) {
+		return mailDispatcher.replayDeadLetters(deadLetterIds);
+	}
+
+	// Reads the bounce mailbox now (it is also read every so often), deactivating
+	// daveners whose address bounced for good
+	@PostMapping(path = "bounces/process")
+	public BounceReport processBounces() throws IOException {
+		return bounceProcessor.processBounces();
+	}
+
+	// Messages waiting in the spool for the mail server to be reachable, and how old
+	@RequestMapping(path = "mail/spool")
+	public SpoolStatus getSpoolStatus() throws IOException {
+		return mailDispatcher.getSpoolStatus();
+	}
+
+	// SMTP handshakes, messages sent and average time per message
+	@RequestMapping(path = "mail/metrics")
+	public MailMetrics getMailMetrics() {
+		return transportPool.getMetrics();
+	}
+
+	// Sends again only the batches of the email that failed, returns how many
+	@PostMapping(path = "outbox/{id}/retry")
+	public int retryOutboundEmail(@PathVariable long id) throws ObjectNotFoundException {
+		return mailDispatcher.retryFailedBatches(id);
 	}
 
 	@RequestMapping(path = "categories")
@@ -1,12 +1,15 @@
 package com.aliza.davening.rest;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.validation.Valid;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
@@ -15,13 +18,16 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.aliza.davening.EmailScheme;
 import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davener;
 import com.aliza.davening.entities.Davenfor;
 import com.aliza.davening.exceptions.EmailException;
 import com.aliza.davening.exceptions.EmptyInformationException;
 import com.aliza.davening.exceptions.ObjectNotFoundException;
 import com.aliza.davening.exceptions.PermissionException;
 import com.aliza.davening.services.SubmitterService;
+import com.aliza.davening.services.UnsubscribeService;
 
 @RestController
 @CrossOrigin(origins = "http://localhost:4200")
@@ -30,6 +36,9 @@ public class SubmitterWebService {
 	@Autowired
 	SubmitterService submitterService;
 
+	@Autowired
+	UnsubscribeService unsubscribeService;
+
 	@RequestMapping(path = "getmynames/{email}")
 	public List<Davenfor> getSubmitterDavenfors(@PathVariable String email) throws ObjectNotFoundException {
 		return submitterService.getAllSubmitterDavenfors(email);
@@ -59,6 +68,41 @@ public class SubmitterWebService {
 		return submitterService.deleteDavenfor(id, email);
 	}
 
+	// Opening an unsubscribe link only asks to confirm, since link checkers open
+	// links too.
+	@GetMapping(path = "unsubscribe", produces = MediaType.TEXT_HTML_VALUE)
+	public String confirmUnsubscribe(@RequestParam("email") String email, @RequestParam("token") String token)
+			throws PermissionException, ObjectNotFoundException {
+		return unsubscribeService.unsubscribePage(email, token);
+	}
+
+	// The confirmation above, or a mail client's one-click unsubscribe (RFC 8058)
+	@PostMapping(path = "unsubscribe", produces = MediaType.TEXT_HTML_VALUE)
+	public String unsubscribe(@RequestParam("email") String email, @RequestParam("token") String token)
+			throws PermissionException {
+		unsubscribeService.unsubscribe(email, token);
+		return EmailScheme.getUnsubscribedPage();
+	}
+
+	// A davener's choice of categories (none for all) and of urgent names
+	@PutMapping(path = "preferences")
+	public Davener updatePreferences(@RequestParam("email") String email, @RequestParam("token") String token,
+			@RequestParam(value = "categories", required = false) Set<Long> categories,
+			@RequestParam(value = "weeklyOnly", defaultValue = "false") boolean weeklyOnly)
+			throws PermissionException, ObjectNotFoundException {
+		return unsubscribeService.updatePreferences(email, token, categories, weeklyOnly);
+	}
+
+	// The same, from the form on the unsubscribe page
+	@PostMapping(path = "preferences", produces = MediaType.TEXT_HTML_VALUE)
+	public String savePreferences(@RequestParam("email") String email, @RequestParam("token") String token,
+			@RequestParam(value = "categories", required = false) Set<Long> categories,
+			@RequestParam(value = "weeklyOnly", defaultValue = "false") boolean weeklyOnly)
+			throws PermissionException, ObjectNotFoundException {
+		unsubscribeService.updatePreferences(email, token, categories, weeklyOnly);
+		return EmailScheme.getPreferencesSavedPage();
+	}
+
 	@RequestMapping(path = "categories")
 	public List<Category> findAllCategories() {
 		return submitterService.getAllCategories();
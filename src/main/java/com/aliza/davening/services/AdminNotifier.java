@@ -0,0 +1,154 @@
+package com.aliza.davening.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.EmailScheme;
+import com.aliza.davening.SchemeValues;
+import com.aliza.davening.entities.Admin;
+import com.aliza.davening.exceptions.EmailException;
+import com.aliza.davening.repositories.AdminRepository;
+
+/*
+ * Tells the admin about names added or updated by submitters, if the admin
+ * asked for it (Admin.newNamePrompt). By default the notices are held and sent
+ * together as one digest email every admin.digest.window.millis, or as soon as
+ * admin.digest.max.batch of them are waiting, so that a rush of submissions
+ * does not become a rush of emails. With admin.digest.enabled=false every
+ * notice is sent on its own, right away, as before.
+ */
+@Service
+public class AdminNotifier {
+
+	private final Logger log = LoggerFactory.getLogger(AdminNotifier.class);
+
+	@Autowired
+	private EmailSender emailSender;
+
+	@Autowired
+	private AdminRepository adminRepository;
+
+	@Value("${admin.digest.enabled:true}")
+	private boolean digestEnabled;
+
+	@Value("${admin.digest.max.batch:25}")
+	private int maxBatch;
+
+	// Notices waiting for the next digest, oldest first
+	private final List<Notice> pending = new ArrayList<Notice>();
+
+	// The admin's newNamePrompt setting, read once until the admin is updated
+	private volatile Boolean newNamePrompt;
+
+	public void notifyAdmin(String subject, String message) throws EmailException {
+
+		if (!isNewNamePrompt()) {
+			return;
+		}
+		if (!digestEnabled) {
+			emailSender.informAdmin(subject, message);
+			return;
+		}
+
+		List<Notice> full = null;
+		synchronized (pending) {
+			pending.add(new Notice(subject, message));
+			if (pending.size() >= maxBatch) {
+				full = drain();
+			}
+		}
+		if (full != null) {
+			sendDigest(full);
+		}
+	}
+
+	// Sends whatever is waiting, in digests of up to admin.digest.max.batch notices.
+	@Scheduled(fixedDelayString = "${admin.digest.window.millis:900000}")
+	@PreDestroy
+	public void flush() {
+		while (true) {
+			List<Notice> notices;
+			synchronized (pending) {
+				notices = drain();
+			}
+			if (notices.isEmpty() || !sendDigest(notices)) {
+				return;
+			}
+		}
+	}
+
+	// Called when the admin's settings change, so the next notice reads them again.
+	public void settingsChanged() {
+		newNamePrompt = null;
+	}
+
+	private boolean isNewNamePrompt() {
+		Boolean prompt = newNamePrompt;
+		if (prompt == null) {
+			Optional<Admin> admin = adminRepository.findById(SchemeValues.adminId);
+			prompt = admin.isPresent() && admin.get().isNewNamePrompt();
+			newNamePrompt = prompt;
+		}
+		return prompt;
+	}
+
+	// Takes up to one digest's worth of notices off the list. Callers hold the lock.
+	private List<Notice> drain() {
+		int count = Math.min(pending.size(), Math.max(maxBatch, 1));
+		List<Notice> notices = new ArrayList<Notice>(pending.subList(0, count));
+		pending.subList(0, count).clear();
+		return notices;
+	}
+
+	/*
+	 * A single notice goes out as it is. If the email could not be queued, the
+	 * notices go back to the front of the list for the next round.
+	 */
+	private boolean sendDigest(List<Notice> notices) {
+		String subject;
+		String message;
+		if (notices.size() == 1) {
+			subject = notices.get(0).subject;
+			message = notices.get(0).message;
+		} else {
+			subject = String.format(EmailScheme.getAdminDigestSubject(), notices.size());
+			StringBuilder body = new StringBuilder();
+			for (Notice notice : notices) {
+				EmailScheme.getAdminDigestEntryTemplate().appendTrustedTo(body, notice.subject, notice.message);
+			}
+			message = body.toString();
+		}
+
+		try {
+			emailSender.informAdmin(subject, message);
+			return true;
+		} catch (EmailException e) {
+			log.warn("Could not send the admin " + notices.size() + " notices, keeping them for later: " + e);
+			synchronized (pending) {
+				pending.addAll(0, notices);
+			}
+			return false;
+		}
+	}
+
+	private static class Notice {
+
+		private final String subject;
+		private final String message;
+
+		private Notice(String subject, String message) {
+			this.subject = subject;
+			this.message = message;
+		}
+	}
+}
@@ -1,26 +1,41 @@
 package com.aliza.davening.services;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.DigestUtils;
 
+import com.aliza.davening.DavenerSegments;
 import com.aliza.davening.SchemeValues;
 import com.aliza.davening.Utilities;
+import com.aliza.davening.WeeklyArtifactStore;
 import com.aliza.davening.entities.Admin;
 import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.CategoryPreview;
 import com.aliza.davening.entities.Davener;
 import com.aliza.davening.entities.Davenfor;
 import com.aliza.davening.entities.Parasha;
 import com.aliza.davening.entities.Submitter;
-import com.aliza.davening.entities.Weekly;
+import com.aliza.davening.entities.WeeklyPreview;
 import com.aliza.davening.exceptions.DatabaseException;
 import com.aliza.davening.exceptions.EmailException;
 import com.aliza.davening.exceptions.EmptyInformationException;
@@ -60,14 +75,39 @@ public class AdminService {
 	@Autowired
 	EmailSender emailSender;
 
+	@Autowired
+	AdminNotifier adminNotifier;
+
 	@Autowired
 	Utilities utilities;
 
+	@Autowired
+	WeeklyArtifactStore weeklyArtifactStore;
+
+	@Autowired
+	DavenerSegments davenerSegments;
+
 	@Autowired
 	BCryptPasswordEncoder bCryptPasswordEncoder;
 
+	@Value("${preview.parallelism:4}")
+	private int previewParallelism;
+
+	// Shared by all preview requests, so that the number of threads stays bounded.
+	private ForkJoinPool previewPool;
+
 	public Admin thisAdmin = null;
 
+	@PostConstruct
+	private void initPreviewPool() {
+		previewPool = new ForkJoinPool(previewParallelism);
+	}
+
+	@PreDestroy
+	private void shutdownPreviewPool() {
+		previewPool.shutdown();
+	}
+
 	// public static Admin thisAdmin = new Admin(11, "davening.list@gmail.com",
 	// "adminPass66", false, 7);
 
@@ -133,6 +173,7 @@ public class AdminService {
 		adminToUpdate.setPassword(bCryptPasswordEncoder.encode(adminToUpdate.getPassword()));
 
 		adminRepository.save(adminToUpdate);
+		adminNotifier.settingsChanged();
 		return true;
 	}
 
@@ -163,9 +204,10 @@ public class AdminService {
 		if (existingDavener != null) {
 			davener = existingDavener; // giving davener the existing id
 			davener.setActive(true);
-		} else { // new davener - save full incoming data
-			davenerRepository.save(davener);
-		}
+		} // if new davener - save full incoming data
+		davenerRepository.save(davener);
+		davenerSegments.update(davener);
+		weeklyArtifactStore.invalidateAll();
 
 		return davenerRepository.findAll();
 	}
@@ -190,15 +232,24 @@ public class AdminService {
 		if (!optionalDavener.isPresent()) {
 			throw new ObjectNotFoundException("Davener with id " + davener.getId());
 		}
-		// In case the external davenerId is different than the id sent with the davener
-		// object
-		davenerRepository.save(davener);
+		// Only what the admin edits is copied - the categories and weeklyOnly are the
+		// davener's own choice (see UnsubscribeService).
+		Davener existing = optionalDavener.get();
+		existing.setEmail(davener.getEmail());
+		existing.setCountry(davener.getCountry());
+		existing.setWhatsapp(davener.getWhatsapp());
+		existing.setActive(davener.isActive());
+		davenerRepository.save(existing);
+		davenerSegments.update(existing);
+		weeklyArtifactStore.invalidateAll();
 		return davenerRepository.findAll();
 	}
 
 	public void deleteDavener(long id) throws ObjectNotFoundException {
 		try {
 			davenerRepository.deleteById(id);
+			davenerSegments.remove(id);
+			weeklyArtifactStore.invalidateAll();
 			// If not found, will throw an unchecked exception which we must catch.
 		} catch (EmptyResultDataAccessException e) {
 			throw new ObjectNotFoundException("Davener with id " + id);
@@ -219,6 +270,7 @@ public class AdminService {
 			throw new ObjectNotFoundException("Name with id: " + id);
 		}
 		davenforRepository.deleteById(optionalDavenfor.get().getId());
+		weeklyArtifactStore.invalidate(optionalDavenfor.get().getCategory().getId());
 		return davenforRepository.findAll();
 	}
 
@@ -254,6 +306,7 @@ public class AdminService {
 
 			crossOffList.remove(updatedCategory);
 		}
+		weeklyArtifactStore.invalidateAll();
 
 		// checking in cross-off list if any categories have not been included in the
 		// sort.
@@ -285,6 +338,7 @@ public class AdminService {
 		category.setHebrew(hebrewCategoryName);
 
 		categoryRepository.save(category);
+		weeklyArtifactStore.invalidateAll();
 
 		return category;
 	}
@@ -336,12 +390,15 @@ public class AdminService {
 		categoryToUpdate.setHebrew(suggestedCategoryNameHebrew);
 
 		categoryRepository.save(categoryToUpdate);
+		weeklyArtifactStore.invalidateAll();
 		return categoryToUpdate;
 	}
 
 	public void deleteCategory(long id) throws ObjectNotFoundException {
 		try {
 			categoryRepository.deleteById(id);
+			davenerSegments.removeCategory(id);
+			weeklyArtifactStore.invalidateAll();
 			// If not found, will throw an unchecked exception which we must catch.
 		} catch (EmptyResultDataAccessException e) {
 			throw new ObjectNotFoundException("Category with id " + id);
@@ -361,6 +418,8 @@ public class AdminService {
 
 		try {
 			davenerRepository.disactivateDavener(davenerEmail);
+			davenerSegments.setActive(Collections.singleton(davenerEmail), false);
+			weeklyArtifactStore.invalidateAll();
 			emailSender.notifyDisactivatedDavener(davenerEmail);
 		} finally { // in case there were previous errors (such as in emailSender), return
 					// davenerList anyway.
@@ -383,6 +442,8 @@ public class AdminService {
 
 		try {
 			davenerRepository.activateDavener(davenerEmail);
+			davenerSegments.setActive(Collections.singleton(davenerEmail), true);
+			weeklyArtifactStore.invalidateAll();
 			emailSender.notifyActivatedDavener(davenerEmail);
 		} finally {// in case there were previous errors (such as in emailSender), return
 			// davenerList anyway.
@@ -397,6 +458,7 @@ public class AdminService {
 		Category nextCategory = utilities.getNextCategory(categoryRepository.getCurrent());
 		categoryRepository.updateCategoryCurrent(false, categoryRepository.getCurrent().getId());
 		categoryRepository.updateCategoryCurrent(true, nextCategory.getId());
+		weeklyArtifactStore.invalidateAll();
 	}
 
 	private boolean checkIfThisCategoryNameIsInUse(String english, String hebrew, List<Category> categories, long id)
@@ -449,15 +511,85 @@ public class AdminService {
 		return this.categoryRepository.getCurrent();
 	}
 
-	public String previewWeekly(Weekly info)
-			throws ObjectNotFoundException, IOException, DatabaseException, EmptyInformationException {
+	/*
+	 * The weekly preview's ETag, worked out without loading any names: every change
+	 * that could alter a list (names, categories, the rotation) goes through
+	 * WeeklyArtifactStore, whose version changes with it.
+	 */
+	public String weeklyPreviewTag(long categoryId, String parashaName) {
+		String state = categoryId + "|" + parashaName + "|" + weeklyArtifactStore.version();
+		return DigestUtils.md5DigestAsHex(state.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Loads what the weekly preview is built from.
+	public WeeklyPreview prepareWeeklyPreview(long categoryId, String parashaName)
+			throws ObjectNotFoundException, EmptyInformationException {
 
-		Optional<Category> optionalCategory = categoryRepository.findById(info.categoryId);
+		Optional<Category> optionalCategory = categoryRepository.findById(categoryId);
 		if (!optionalCategory.isPresent()) {
-			throw new ObjectNotFoundException("category of id " + info.categoryId);
+			throw new ObjectNotFoundException("category of id " + categoryId);
 		}
 		Category category = optionalCategory.get();
 
-		return utilities.createWeeklyHtml(category, info.parashaName);
+		List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+		if (categoryDavenfors.isEmpty()) {
+			throw new EmptyInformationException("There are no names to daven for in this category. ");
+		}
+		Category nextCategory = utilities.getNextCategory(category);
+
+		return new WeeklyPreview(category, parashaName, categoryDavenfors, nextCategory);
+	}
+
+	/*
+	 * Builds the preview of every category at once, each on its own task in a
+	 * bounded pool. The categories (and so the rotation) are loaded once and shared
+	 * by all tasks. Results come back in category order, each with its timing.
+	 */
+	public List<CategoryPreview> previewAllCategories(String parashaName, boolean withImages) {
+
+		List<Category> allCategories = categoryRepository.findAll();
+		allCategories.sort(Comparator.comparingInt(Category::getCatOrder));
+
+		List<ForkJoinTask<CategoryPreview>> tasks = new ArrayList<ForkJoinTask<CategoryPreview>>();
+		for (Category category : allCategories) {
+			tasks.add(previewPool.submit(() -> previewCategory(category, allCategories, parashaName, withImages)));
+		}
+
+		List<CategoryPreview> previews = new ArrayList<CategoryPreview>();
+		for (ForkJoinTask<CategoryPreview> task : tasks) {
+			previews.add(task.join());
+		}
+		return previews;
+	}
+
+	private CategoryPreview previewCategory(Category category, List<Category> allCategories, String parashaName,
+			boolean withImages) {
+
+		long start = System.nanoTime();
+		String html = null;
+		byte[] image = null;
+		String error = null;
+
+		try {
+			List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+			Category nextCategory = utilities.getNextCategory(category, allCategories);
+
+			html = utilities.createWeeklyHtml(category, parashaName, categoryDavenfors, nextCategory);
+			if (withImages) {
+				image = utilities.buildListImage(category, parashaName, categoryDavenfors, nextCategory);
+			}
+		} catch (EmptyInformationException | IOException e) {
+			error = e.getMessage();
+		}
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		return new CategoryPreview(category.getId(), category.getEnglish(), category.getHebrew(), html, image, error,
+				millis);
+	}
+
+	public void writeWeeklyPreview(WeeklyPreview preview, Writer writer)
+			throws IOException, EmptyInformationException {
+		utilities.writeWeeklyHtml(writer, preview.getCategory(), preview.getParashaName(), preview.getDavenfors(),
+				preview.getNextCategory());
 	}
 }
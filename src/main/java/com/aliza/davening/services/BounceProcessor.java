@@ -0,0 +1,186 @@
+package com.aliza.davening.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.DavenerSegments;
+import com.aliza.davening.WeeklyArtifactStore;
+import com.aliza.davening.entities.BounceReport;
+import com.aliza.davening.repositories.DavenerRepository;
+
+/*
+ * Reads the delivery reports (DSN, RFC 3464) that come back for mail that could
+ * not be delivered, and stops sending to daveners whose address failed for
+ * good, so the weekly and urgent emails stop going to dead addresses.
+ *
+ * The reports are read from a maildir (mail.bounces.directory) that the
+ * mailbox is delivered or synced to: new messages are taken from its new/
+ * folder, and moved to cur/ only once the daveners they name are deactivated -
+ * if that fails, they are read again on the next pass. An address is a hard
+ * bounce if the report says the delivery failed with a 5.x.x status; 4.x.x
+ * failures, and failures without a clear status, are passing, and only
+ * counted. All hard bounces of a pass are deactivated together, in one
+ * statement, without the email a davener deactivated by the admin gets.
+ */
+@Service
+public class BounceProcessor {
+
+	private final Logger log = LoggerFactory.getLogger(BounceProcessor.class);
+
+	@Autowired
+	private DavenerRepository davenerRepository;
+
+	@Autowired
+	private WeeklyArtifactStore weeklyArtifactStore;
+
+	@Autowired
+	private DavenerSegments davenerSegments;
+
+	@Autowired
+	private JavaMailSenderImpl javaMailSender;
+
+	// Empty turns bounce processing off
+	@Value("${mail.bounces.directory:}")
+	private String bouncesDirectory;
+
+	@Scheduled(fixedDelayString = "${mail.bounces.scan.millis:3600000}")
+	public void scheduledPass() throws IOException {
+		if (!bouncesDirectory.isEmpty()) {
+			processBounces();
+		}
+	}
+
+	public synchronized BounceReport processBounces() throws IOException {
+		Path maildir = Paths.get(bouncesDirectory);
+		Path newMail = maildir.resolve("new");
+		Path readMail = maildir.resolve("cur");
+		if (bouncesDirectory.isEmpty() || !Files.isDirectory(newMail)) {
+			log.warn("No maildir to read bounces from at '" + bouncesDirectory + "'");
+			return new BounceReport(0, 0, 0, 0);
+		}
+		Files.createDirectories(readMail);
+
+		List<Path> read = new ArrayList<Path>();
+		Set<String> hardBounces = new LinkedHashSet<String>();
+		Set<String> softBounces = new LinkedHashSet<String>();
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(newMail)) {
+			for (Path file : files) {
+				read.add(file);
+				try (InputStream in = Files.newInputStream(file)) {
+					readReport(new MimeMessage(javaMailSender.getSession(), in), hardBounces, softBounces);
+				} catch (MessagingException e) {
+					log.warn("Could not read " + file.getFileName() + " as an email: " + e);
+				}
+			}
+		}
+		softBounces.removeAll(hardBounces);
+
+		int deactivated = hardBounces.isEmpty() ? 0 : davenerRepository.disactivateDaveners(hardBounces);
+		if (deactivated > 0) {
+			davenerSegments.setActive(hardBounces, false);
+			weeklyArtifactStore.invalidateAll();
+		}
+
+		// Read (S) - not looked at again
+		for (Path file : read) {
+			Files.move(file, readMail.resolve(file.getFileName() + ":2,S"));
+		}
+
+		int messages = read.size();
+		if (messages > 0) {
+			log.info(String.format("Bounces: %d messages, %d hard bounces (%d daveners deactivated), %d soft bounces",
+					messages, hardBounces.size(), deactivated, softBounces.size()));
+		}
+		return new BounceReport(messages, hardBounces.size(), softBounces.size(), deactivated);
+	}
+
+	// Adds the failed recipients of a delivery report. Any other message is ignored.
+	private void readReport(MimeMessage message, Set<String> hardBounces, Set<String> softBounces)
+			throws MessagingException, IOException {
+		if (!message.isMimeType("multipart/report")) {
+			return;
+		}
+		Object content = message.getContent();
+		if (!(content instanceof Multipart)) {
+			return;
+		}
+		Multipart report = (Multipart) content;
+		for (int i = 0; i < report.getCount(); i++) {
+			BodyPart part = report.getBodyPart(i);
+			if (part.isMimeType("message/delivery-status")) {
+				readDeliveryStatus(part.getInputStream(), hardBounces, softBounces);
+			}
+		}
+	}
+
+	/*
+	 * The delivery status is a block of fields about the message, then a block per
+	 * recipient, separated by blank lines:
+	 * Final-Recipient: rfc822; someone@example.com
+	 * Action: failed
+	 * Status: 5.1.1
+	 */
+	private void readDeliveryStatus(InputStream in, Set<String> hardBounces, Set<String> softBounces)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+		Map<String, String> fields = new HashMap<String, String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().isEmpty()) {
+				addRecipient(fields, hardBounces, softBounces);
+				fields.clear();
+				continue;
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				fields.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		addRecipient(fields, hardBounces, softBounces);
+	}
+
+	private void addRecipient(Map<String, String> fields, Set<String> hardBounces, Set<String> softBounces) {
+		String recipient = fields.getOrDefault("final-recipient", fields.get("original-recipient"));
+		String action = fields.get("action");
+		if (recipient == null || action == null) {
+			return; // The block about the message, or not a recipient's
+		}
+
+		// "rfc822; someone@example.com"
+		String address = recipient.substring(recipient.indexOf(';') + 1).trim().replaceAll("^<|>$", "");
+		String status = fields.getOrDefault("status", "");
+
+		if (action.equalsIgnoreCase("failed") && status.startsWith("5")) {
+			hardBounces.add(address);
+		} else if (action.equalsIgnoreCase("failed") || action.equalsIgnoreCase("delayed")) {
+			softBounces.add(address);
+		}
+	}
+}
@@ -1,35 +1,37 @@
 package com.aliza.davening.services;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 
+import com.aliza.davening.DavenerSegments;
 import com.aliza.davening.EmailScheme;
+import com.aliza.davening.EmailTemplates;
+import com.aliza.davening.HtmlTemplate;
 import com.aliza.davening.SchemeValues;
 import com.aliza.davening.Utilities;
+import com.aliza.davening.WeeklyArtifactStore;
+import com.aliza.davening.WeeklyArtifactStore.WeeklyArtifacts;
 import com.aliza.davening.entities.Category;
 import com.aliza.davening.entities.Davenfor;
+import com.aliza.davening.entities.MailPriority;
+import com.aliza.davening.entities.Parasha;
 import com.aliza.davening.entities.Weekly;
+import com.aliza.davening.entities.WeeklyFormat;
 import com.aliza.davening.exceptions.DatabaseException;
 import com.aliza.davening.exceptions.EmailException;
 import com.aliza.davening.exceptions.EmptyInformationException;
 import com.aliza.davening.exceptions.ObjectNotFoundException;
 import com.aliza.davening.repositories.AdminRepository;
 import com.aliza.davening.repositories.CategoryRepository;
-import com.aliza.davening.repositories.DavenerRepository;
 import com.aliza.davening.repositories.DavenforRepository;
 import com.aliza.davening.repositories.ParashaRepository;
 import com.itextpdf.text.DocumentException;
@@ -38,17 +40,13 @@ import com.itextpdf.text.DocumentException;
 public class EmailSender {
 
 	@Autowired
-	private JavaMailSender javaMailSender;
+	private MailDispatcher mailDispatcher;
 
 	@Autowired
 	private AdminRepository adminRepository;
 
 	@Autowired
 	private DavenforRepository davenforRepository;
-
-	@Autowired
-	private DavenerRepository davenerRepository;
-
 	@Autowired
 	private CategoryRepository categoryRepository;
 
@@ -58,6 +56,15 @@ public class EmailSender {
 	@Autowired
 	private Utilities utilities;
 
+	@Autowired
+	private WeeklyArtifactStore weeklyArtifactStore;
+
+	@Autowired
+	private EmailTemplates emailTemplates;
+
+	@Autowired
+	private DavenerSegments davenerSegments;
+
 	@Value("${spring.mail.username}")
 	String adminEmail;
 
@@ -72,68 +79,163 @@ public class EmailSender {
 		 * simple email where subject is defined in EmailScheme, message is received,
 		 * recipient is only one, and there is no bcc.
 		 */
-		doEmail(EmailScheme.getAdminMessageSubject(), message, recipient, makeAdminTheBcc(), null, null);
+		doEmail(MailPriority.TRANSACTIONAL, EmailScheme.getAdminMessageSubject(), message, recipient,
+				makeAdminTheBcc(), null, null);
 	}
 
-	public void sendSimplifiedWeekly() throws IOException, MessagingException, EmailException, DocumentException,
+	public long sendSimplifiedWeekly() throws IOException, MessagingException, EmailException, DocumentException,
 			ObjectNotFoundException, DatabaseException, EmptyInformationException {
-		Weekly simplified = new Weekly();
-		simplified.parashaName = parashaRepository.findCurrent().getEnglishName();
-		simplified.fullWeekName = parashaRepository.findCurrent().getEnglishName() + " - "
-				+ parashaRepository.findCurrent().getHebrewName();
-		simplified.categoryId = categoryRepository.getCurrent().getId();
-		simplified.message = null;
-		sendOutWeekly(simplified);
+
+		/*
+		 * If the list was already prepared for this week's category and parasha (see
+		 * preRenderWeekly), all that is left is to send it out.
+		 */
+		Parasha parasha = parashaRepository.findCurrent();
+		Category category = categoryRepository.getCurrent();
+
+		WeeklyArtifacts artifacts = weeklyArtifactStore.get(category.getId(), parasha.getEnglishName());
+		if (artifacts == null) {
+			artifacts = renderWeekly(category, parasha.getEnglishName(), fullWeekName(parasha));
+		}
+		return dispatchWeekly(artifacts.getParashaName(), artifacts.getRecipients(), artifacts.getImage(), "png",
+				null);
 	}
 
-	public void sendOutWeekly(Weekly info) throws IOException, MessagingException, EmailException, DocumentException,
+	// Prepares the current week's list ahead of time, so that sending it is quick.
+	public WeeklyArtifacts preRenderWeekly() throws IOException, EmptyInformationException {
+		Parasha parasha = parashaRepository.findCurrent();
+		return renderWeekly(categoryRepository.getCurrent(), parasha.getEnglishName(), fullWeekName(parasha));
+	}
+
+	// Returns the id of the queued email (see MailDispatcher).
+	public long sendOutWeekly(Weekly info) throws IOException, MessagingException, EmailException, DocumentException,
 			ObjectNotFoundException, DatabaseException, EmptyInformationException {
 
-		Optional<Category> optionalCategory = categoryRepository.findById(info.categoryId);
+		// A PDF is built from the names as they are now (and cached like the image).
+		if (info.format == WeeklyFormat.PDF) {
+			Category category = findCategory(info.categoryId);
+			List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+			byte[] pdf = utilities.buildListPdf(category, info.parashaName, categoryDavenfors,
+					utilities.getNextCategory(category));
+			return dispatchWeekly(info.parashaName, davenerSegments.weeklyRecipients(category.getId()), pdf,
+					"pdf", info.message);
+		}
+
+		// Inline, the list is the body of the email - no image to render or attach.
+		if (info.format == WeeklyFormat.INLINE) {
+			Category category = findCategory(info.categoryId);
+			List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+			String html = utilities.buildInlineWeeklyHtml(category, info.parashaName, categoryDavenfors,
+					utilities.getNextCategory(category));
+			return dispatchWeeklyInline(info.parashaName, davenerSegments.weeklyRecipients(category.getId()),
+					html, info.message);
+		}
+
+		WeeklyArtifacts artifacts = weeklyArtifactStore.get(info.categoryId, info.parashaName);
+		if (artifacts == null) {
+			artifacts = renderWeekly(findCategory(info.categoryId), info.parashaName, info.fullWeekName);
+		}
+
+		return dispatchWeekly(artifacts.getParashaName(), artifacts.getRecipients(), artifacts.getImage(), "png",
+				info.message);
+	}
+
+	private Category findCategory(long categoryId) throws ObjectNotFoundException {
+		Optional<Category> optionalCategory = categoryRepository.findById(categoryId);
 		if (!optionalCategory.isPresent()) {
-			throw new ObjectNotFoundException("category of id " + info.categoryId);
+			throw new ObjectNotFoundException("category of id " + categoryId);
 		}
-		Category category = optionalCategory.get();
+		return optionalCategory.get();
+	}
 
-//		LocalDate date = LocalDate.now();
-//		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-//		String todaysDate = dateFormat.format(date);
-		String todaysDate = "2020-27-11";
+	// Builds everything the weekly email needs, and keeps it for later sends.
+	private WeeklyArtifacts renderWeekly(Category category, String parashaName, String fullWeekName)
+			throws IOException, EmptyInformationException {
 
-		String subject = String.format(EmailScheme.getWeeklyEmailSubject(),
-				info.parashaName.length() > 0 ? info.parashaName : todaysDate);
+		long generation = weeklyArtifactStore.generation();
 
-		String emailText = EmailScheme.getWeeklyEmailText();
+		List<Davenfor> categoryDavenfors = davenforRepository.findAllDavenforByCategory(category);
+		Category nextCategory = utilities.getNextCategory(category);
+
+		String html = utilities.createWeeklyHtml(category, parashaName, categoryDavenfors, nextCategory);
+		byte[] image = utilities.buildListImage(category, parashaName, categoryDavenfors, nextCategory);
+		List<String> davenersList = davenerSegments.weeklyRecipients(category.getId());
+
+		WeeklyArtifacts artifacts = new WeeklyArtifacts(category.getId(), parashaName, fullWeekName, html, image,
+				davenersList);
+		weeklyArtifactStore.store(artifacts, generation);
+		return artifacts;
+	}
+
+	// Sends the list (a png or pdf, according to extension) to all daveners.
+	private long dispatchWeekly(String parashaName, List<String> davenersList, byte[] list, String extension,
+			String adminMessage) throws IOException, EmailException {
+
+		String todaysDate = todaysDate();
+
+		String subject = weeklySubject(parashaName, todaysDate);
+
+		String emailText = weeklyEmailText();
 
 		// If there is a message from the admin, add it beforehand.
-		if (info.message != null) {
-			emailText = concatAdminMessage(info.message, emailText);
+		if (adminMessage != null) {
+			emailText = concatAdminMessage(adminMessage, emailText);
 		}
 
-		List<String> davenersList = davenerRepository.getAllDavenersEmails();
-
 		// Converting list to array, to match MimeMessageHelper.setTo()
 		String[] davenersArray = new String[davenersList.size()];
 		davenersArray = davenersList.toArray(davenersArray);
 
-		String fileName = String.format(EmailScheme.getWeeklyFileName(), todaysDate);
+		String fileName = String.format(EmailScheme.getWeeklyFileName(), todaysDate) + "." + extension;
 
 		/*
 		 * 'to' field in doEmail cannot be empty (JavaMailSender in subsequent methods),
 		 * therefore including admin's email.
 		 */ String adminEmail = adminRepository.FindAdminEmailById(SchemeValues.adminId);
 
-		doEmail(subject, emailText, adminEmail, davenersArray,
-				utilities.buildListImage(category, info.parashaName, info.fullWeekName), fileName);
+		utilities.archiveList(parashaName, list, extension);
+
+		return doEmail(MailPriority.BULK, true, subject, emailText, adminEmail, davenersArray, list, fileName);
 	}
 
-	public void sendUrgentEmail(Davenfor davenfor) throws EmailException, EmptyInformationException {
+	// Sends the list as the body of the email, followed by the usual weekly text.
+	private long dispatchWeeklyInline(String parashaName, List<String> davenersList, String html,
+			String adminMessage) throws EmailException {
+
+		String emailText = html + weeklyEmailText();
+		if (adminMessage != null) {
+			emailText = concatAdminMessage(adminMessage, emailText);
+		}
+
+		String[] davenersArray = davenersList.toArray(new String[davenersList.size()]);
+
+		String adminEmail = adminRepository.FindAdminEmailById(SchemeValues.adminId);
+
+		return doEmail(MailPriority.BULK, true, weeklySubject(parashaName, todaysDate()), emailText, adminEmail,
+				davenersArray, null, null);
+	}
+
+	private String weeklySubject(String parashaName, String todaysDate) {
+		return String.format(EmailScheme.getWeeklyEmailSubject(), parashaName.length() > 0 ? parashaName : todaysDate);
+	}
+
+	// Dates the weekly subject (when there is no parasha name) and attachment.
+	private String todaysDate() {
+		return LocalDate.now().toString(); // yyyy-MM-dd
+	}
+
+	private String fullWeekName(Parasha parasha) {
+		return parasha.getEnglishName() + " - " + parasha.getHebrewName();
+	}
+
+	public long sendUrgentEmail(Davenfor davenfor) throws EmailException, EmptyInformationException {
 
 		if (davenfor == null) {
 			throw new EmptyInformationException("The name you submitted for davening is incomplete.  ");
 		}
 
-		List<String> davenersList = davenerRepository.getAllDavenersEmails();
+		// Only the daveners who want urgent names of this category
+		List<String> davenersList = davenerSegments.urgentRecipients(davenfor.getCategory().getId());
 
 		// Converting list to array, to match MimeMessageHelper.setTo()
 		String[] davenersArray = new String[davenersList.size()];
@@ -151,13 +253,13 @@ public class EmailSender {
 		// one language).
 		if (SchemeValues.banimName.equals(davenfor.getCategory().getEnglish())
 				&& (davenfor.getNameEnglishSpouse() != null || davenfor.getNameHebrewSpouse() != null)) {
-			urgentMessage = String.format(EmailScheme.getUrgentDavenforEmailBanim(), davenfor.getNameEnglish(),
+			urgentMessage = EmailScheme.getUrgentDavenforBanimTemplate().render(davenfor.getNameEnglish(),
 					davenfor.getNameHebrew(), davenfor.getNameEnglishSpouse(), davenfor.getNameHebrewSpouse(),
 					SchemeValues.banimName);
 		}
 
 		else {
-			urgentMessage = String.format(EmailScheme.getUrgentDavenforEmailText(), davenfor.getNameEnglish(),
+			urgentMessage = EmailScheme.getUrgentDavenforTextTemplate().render(davenfor.getNameEnglish(),
 					davenfor.getNameHebrew(), davenfor.getCategory().getEnglish());
 		}
 
@@ -171,14 +273,14 @@ public class EmailSender {
 		 */
 		String adminEmail = adminRepository.FindAdminEmailById(SchemeValues.adminId);
 
-		doEmail(subject, urgentMessage, adminEmail, davenersArray, null, null);
+		return doEmail(MailPriority.URGENT, true, subject, urgentMessage, adminEmail, davenersArray, null, null);
 	}
 
 	public void informAdmin(String subject, String message) throws EmailException {
 
 		String adminEmail = adminRepository.FindAdminEmailById(SchemeValues.adminId);
 
-		doEmail(subject, message, adminEmail, makeAdminTheBcc(), null, null);
+		doEmail(MailPriority.TRANSACTIONAL, subject, message, adminEmail, makeAdminTheBcc(), null, null);
 
 	}
 
@@ -197,20 +299,18 @@ public class EmailSender {
 
 		/*
 		 * Retrieving standard confirmation email text, and personalizing it
-		 * respectively. Code gets email text from file saved in src/resources (path
-		 * defined in SchemeValues), replaces values with specific davenfor values and
-		 * sets it as the email body.
+		 * respectively. The text is a file on the classpath (location defined in
+		 * EmailScheme), read once and kept compiled by EmailTemplates, which fills in
+		 * the specific davenfor values for the email body.
 		 */
 
-		String emailText = new String(Files.readAllBytes(Paths.get(EmailScheme.getConfirmationEmailTextLocation())),
-				StandardCharsets.UTF_8);
-		String personalizedEmailText = String.format(emailText, confirmedDavenfor.getNameEnglish(),
-				confirmedDavenfor.getCategory().getEnglish(), confirmedDavenfor.getId());
+		String personalizedEmailText = emailTemplates.get(EmailScheme.getConfirmationEmailTextLocation())
+				.render(confirmedDavenfor.getNameEnglish(), confirmedDavenfor.getCategory().getEnglish());
 
 		String to = confirmedDavenfor.getSubmitterEmail();
 
 		try {
-			doEmail(subject, personalizedEmailText, to, makeAdminTheBcc(), null, null);
+			doEmail(MailPriority.TRANSACTIONAL, subject, personalizedEmailText, to, makeAdminTheBcc(), null, null);
 
 		} catch (Exception e) {
 			throw new EmailException(
@@ -230,59 +330,57 @@ public class EmailSender {
 		sendEmailFromAdmin(email, EmailScheme.getDavenerActivated());
 	}
 
-	public void offerExtensionOrDelete(Davenfor davenfor) throws EmailException {
+	// All the expiring names of one submitter, in one email.
+	public void offerExtensionOrDelete(String recipient, List<Davenfor> davenfors) throws EmailException {
 
 		String subject = EmailScheme.getExpiringNameSubject();
-		String message = String.format(Utilities.setExpiringNameMessage(davenfor));
-		String recipient = davenfor.getSubmitterEmail();
+		String message = Utilities.setExpiringNamesMessage(davenfors);
 
 		try {
-			doEmail(subject, message, recipient, makeAdminTheBcc(), null, null);
+			doEmail(MailPriority.BULK, subject, message, recipient, makeAdminTheBcc(), null, null);
 		} catch (EmailException e) {
-			// throw new EmailException(
-			// String.format("Unable to send an email to %s offering to extend or delete the
-			// name %s.", recipient,
-			// davenfor.getNameEnglish()));
-			e.printStackTrace();
+			throw new EmailException(String.format(
+					"Unable to send an email to %s offering to extend or delete %d names. %s", recipient,
+					davenfors.size(), e.getMessage()));
 		}
 	}
 
-	private void doEmail(String subject, String message, String to, String[] bcc, File attachment,
-			String attachmentName) throws EmailException {
-		MimeMessage msg = javaMailSender.createMimeMessage();
+	/*
+	 * Puts the email in the outbox and returns its id. MailDispatcher sends it in
+	 * the background, so callers don't wait for the mail server.
+	 */
+	private long doEmail(MailPriority priority, String subject, String message, String to, String[] bcc,
+			byte[] attachment, String attachmentName) throws EmailException {
+		return doEmail(priority, false, subject, message, to, bcc, attachment, attachmentName);
+	}
 
-		MimeMessageHelper helper;
+	// List mail goes to the daveners, and carries unsubscribe headers.
+	private long doEmail(MailPriority priority, boolean listMail, String subject, String message, String to,
+			String[] bcc, byte[] attachment, String attachmentName) throws EmailException {
 		try {
-			// true = multipart message
-			helper = new MimeMessageHelper(msg, true);
-
-			helper.setSubject(subject);
-
-			// true = html. Default: text/plain
-			helper.setText(message, true);
-
-			helper.setTo(to);
-			helper.setBcc(bcc);
-			if (attachment != null) {
-				helper.addAttachment(attachmentName, attachment);
-			}
-			javaMailSender.send(msg);
-		} catch (Exception e) {
-			throw new EmailException("Something went wrong with sending the email.  " + e);
+			return mailDispatcher.enqueue(priority, listMail, subject, message, to, bcc, attachment,
+					attachmentName);
+		} catch (DataAccessException e) {
+			throw new EmailException("Something went wrong with queueing the email.  " + e);
 		}
+	}
 
+	// Each davener's own unsubscribe link is put in when their message is built
+	// (see MailDispatcher).
+	private String weeklyEmailText() {
+		return EmailScheme.getWeeklyEmailTextTemplate().render(UnsubscribeService.linkPlaceholder);
 	}
 
 	private String concatAdminMessage(String adminMessage, String emailText) {
 		// adding admin message before name and bolding it according to settings in
 		// EmailScheme.
-		return String.format(EmailScheme.getBoldFirstMessage(), adminMessage, emailText);
+		return EmailScheme.getBoldFirstMessageTemplate().renderTrusted(adminMessage, emailText);
 	}
 
 	private String concatAdminMessageAfter(String adminMessage, String emailText) {
 		// adding admin message after name and bolding it according to settings in
-		// EmailScheme.
-		return String.format(EmailScheme.getBoldSecondMessage(), emailText, adminMessage);
+		// EmailScheme. The message may be a user's note, so it is escaped.
+		return EmailScheme.getBoldSecondMessageTemplate().renderTrusted(emailText, HtmlTemplate.escape(adminMessage));
 	}
 
 	private String[] makeAdminTheBcc() {
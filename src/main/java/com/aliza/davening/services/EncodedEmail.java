@@ -0,0 +1,159 @@
+package com.aliza.davening.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/*
+ * An email's subject, body and attachment, MIME encoded once, to be sent to
+ * several batches of recipients. Each batch gets a message read back from the
+ * same bytes (shared, not copied) with only its own recipients, date and
+ * message id set. A message read from bytes counts as saved, so JavaMail writes
+ * its content out exactly as it was read - the attachment is base64 encoded
+ * once for the whole email instead of once per batch.
+ *
+ * List mail sent to one davener at a time carries the davener's own
+ * unsubscribe link in its body. Such a message gets a body of its own, and the
+ * rest of the email's parts (the attachment) are added from their encoded bytes
+ * as they are.
+ */
+class EncodedEmail {
+
+	private final byte[] encoded;
+
+	// The email's 'to' address, which only the first batch goes to
+	private final String to;
+
+	// For the right hand side of the message ids
+	private final String domain;
+
+	// Sent to the daveners (see OutboundEmail.listMail)
+	private final boolean listMail;
+
+	// The html body with UnsubscribeService.linkPlaceholder where each davener's
+	// link goes, or null if the email isn't sent one davener at a time
+	private final String personalHtml;
+
+	// Every part of the email but its body, encoded
+	private final List<byte[]> sharedParts;
+
+	private EncodedEmail(byte[] encoded, String to, String domain, boolean listMail, String personalHtml,
+			List<byte[]> sharedParts) {
+		this.encoded = encoded;
+		this.to = to;
+		this.domain = domain;
+		this.listMail = listMail;
+		this.personalHtml = personalHtml;
+		this.sharedParts = sharedParts;
+	}
+
+	// The message should have everything but its recipients.
+	static EncodedEmail encode(MimeMessage message, String to, String domain, boolean listMail)
+			throws MessagingException, IOException {
+		return encode(message, to, domain, listMail, null, null);
+	}
+
+	/*
+	 * As above, for an email that is also sent to daveners one at a time: the
+	 * message is what goes to its 'to' address (and to batches of daveners), and
+	 * personalHtml the body each davener gets instead. The message is expected as
+	 * MimeMessageHelper builds it - its body first, then its attachments.
+	 */
+	static EncodedEmail encode(MimeMessage message, String to, String domain, boolean listMail,
+			String personalHtml, Session session) throws MessagingException, IOException {
+		message.saveChanges();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		byte[] encoded = out.toByteArray();
+
+		List<byte[]> sharedParts = Collections.emptyList();
+		if (personalHtml != null) {
+			sharedParts = new ArrayList<byte[]>();
+			Object content = new MimeMessage(session, new SharedByteArrayInputStream(encoded)).getContent();
+			if (content instanceof Multipart) {
+				Multipart parts = (Multipart) content;
+				for (int i = 1; i < parts.getCount(); i++) {
+					ByteArrayOutputStream part = new ByteArrayOutputStream();
+					parts.getBodyPart(i).writeTo(part);
+					sharedParts.add(part.toByteArray());
+				}
+			}
+		}
+		return new EncodedEmail(encoded, to, domain, listMail, personalHtml, sharedParts);
+	}
+
+	MimeMessage forRecipients(Session session, boolean withTo, String[] bcc) throws MessagingException {
+		MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(encoded));
+
+		if (withTo && to != null) {
+			message.setRecipient(RecipientType.TO, new InternetAddress(to));
+		}
+		if (bcc != null && bcc.length > 0) {
+			InternetAddress[] addresses = new InternetAddress[bcc.length];
+			for (int i = 0; i < bcc.length; i++) {
+				addresses[i] = new InternetAddress(bcc[i]);
+			}
+			message.setRecipients(RecipientType.BCC, addresses);
+		}
+
+		// Setting headers does not touch the encoded content.
+		message.setSentDate(new Date());
+		message.setHeader("Message-ID", "<" + UUID.randomUUID() + "@" + domain + ">");
+		return message;
+	}
+
+	/*
+	 * A message to one davener, with their unsubscribe link (already escaped for
+	 * html) in the body. Only the body is encoded here; the headers are those of
+	 * the encoded email.
+	 */
+	MimeMessage forDavener(Session session, String davener, String link) throws MessagingException {
+		MimeMessage message = new MimeMessage(session, new SharedByteArrayInputStream(encoded));
+
+		MimeMultipart parts = new MimeMultipart();
+		MimeBodyPart body = new MimeBodyPart();
+		body.setText(personalHtml.replace(UnsubscribeService.linkPlaceholder, link), "UTF-8", "html");
+		parts.addBodyPart(body);
+		for (byte[] part : sharedParts) {
+			parts.addBodyPart(new MimeBodyPart(new SharedByteArrayInputStream(part)));
+		}
+		message.setContent(parts);
+		message.saveChanges();
+
+		message.setRecipient(RecipientType.TO, new InternetAddress(davener));
+		message.setSentDate(new Date());
+		message.setHeader("Message-ID", "<" + UUID.randomUUID() + "@" + domain + ">");
+		return message;
+	}
+
+	boolean isListMail() {
+		return listMail;
+	}
+
+	// Whether forDavener can be used
+	boolean isPersonal() {
+		return personalHtml != null;
+	}
+
+	boolean hasTo() {
+		return to != null;
+	}
+
+	int size() {
+		return encoded.length;
+	}
+}
@@ -0,0 +1,917 @@
+package com.aliza.davening.services;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.aliza.davening.HtmlTemplate;
+import com.aliza.davening.RenderCache;
+import com.aliza.davening.entities.DeadLetter;
+import com.aliza.davening.entities.LaneWait;
+import com.aliza.davening.entities.MailPriority;
+import com.aliza.davening.entities.OutboundBatch;
+import com.aliza.davening.entities.OutboundEmail;
+import com.aliza.davening.entities.OutboundStatus;
+import com.aliza.davening.entities.SpoolStatus;
+import com.aliza.davening.exceptions.ObjectNotFoundException;
+import com.aliza.davening.repositories.DeadLetterRepository;
+import com.aliza.davening.repositories.OutboundBatchRepository;
+import com.aliza.davening.repositories.OutboundEmailRepository;
+import com.aliza.davening.services.MailSpool.SpoolEntry;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.util.MailConnectException;
+
+/*
+ * Sends the emails waiting in the outbox. EmailSender only saves an email and
+ * hands it over here; a small pool of workers does the actual sending, so
+ * requests and scheduled jobs return as soon as the email is saved.
+ *
+ * An email's bcc list is split into batches of mail.batch.size recipients, and
+ * each batch is sent as a message of its own. The workers send batches side by
+ * side, so mail.outbox.workers is also the most SMTP connections open at once
+ * (kept open between messages by SmtpTransportPool). The content of an email
+ * is encoded once for all its batches (see EncodedEmail), and each batch is
+ * sent within its lane's budget (see MailRateLimiter).
+ *
+ * Batches are taken urgent first, then transactional, then bulk (oldest first
+ * within a lane), and one more worker is kept for urgent batches alone, so an
+ * urgent email goes out within seconds even in the middle of a weekly run.
+ *
+ * When the mail server can't be reached at all (no connection, or the login is
+ * refused), a batch's message is written to the spool (see MailSpool) rather
+ * than used up on retries, and replayed from there, as it was built, once the
+ * server is back.
+ *
+ * A batch is sent by whichever worker first moves it from QUEUED to SENDING.
+ * Batches that were in the middle of sending when the application stopped are
+ * queued again on startup, and the outbox is swept every so often for anything
+ * that was queued but never handed to a worker.
+ */
+@Service
+public class MailDispatcher {
+
+	private final Logger log = LoggerFactory.getLogger(MailDispatcher.class);
+
+	@Autowired
+	private JavaMailSenderImpl javaMailSender;
+
+	@Autowired
+	private OutboundEmailRepository outboundEmailRepository;
+
+	@Autowired
+	private OutboundBatchRepository outboundBatchRepository;
+
+	@Autowired
+	private SmtpTransportPool transportPool;
+
+	@Autowired
+	private DeadLetterRepository deadLetterRepository;
+
+	@Autowired
+	private MailRateLimiter rateLimiter;
+
+	@Autowired
+	private MailSpool mailSpool;
+
+	@Value("${mail.spool.enabled:true}")
+	private boolean spoolEnabled;
+
+	@Value("${mail.spool.replay.workers:2}")
+	private int spoolReplayerCount;
+
+	@Value("${mail.retry.max.attempts:5}")
+	private int maxAttempts;
+
+	// The first retry comes after about this long, every next one waits twice as
+	// long, up to mail.retry.max.millis
+	@Value("${mail.retry.base.millis:60000}")
+	private long retryBaseMillis;
+
+	@Value("${mail.retry.max.millis:3600000}")
+	private long retryMaxMillis;
+
+	private final Random random = new Random();
+
+	@Value("${mail.outbox.workers:2}")
+	private int workerCount;
+
+	// Far longer than sending a batch takes, budget wait and SMTP timeouts included
+	@Value("${mail.outbox.sending.timeout.millis:900000}")
+	private long sendingTimeoutMillis;
+
+	@Value("${mail.batch.size:50}")
+	private int batchSize;
+
+	// For list mail, the same as other mail unless set. At 1 every davener gets a
+	// message of their own, with their own unsubscribe link (see
+	// UnsubscribeService) - a message per recipient against the sending budgets.
+	@Value("${mail.list.batch.size:${mail.batch.size:50}}")
+	private int listBatchSize;
+
+	@Autowired
+	private UnsubscribeService unsubscribeService;
+
+	@Value("${spring.mail.username}")
+	private String mailUsername;
+
+	// Take batches in order of priority (see BatchTask)
+	private ThreadPoolExecutor workers;
+
+	// Kept free for urgent batches, which also go in the general queue. Whichever
+	// takes an urgent batch first drops the other's copy.
+	private ThreadPoolExecutor urgentWorker;
+
+	private ExecutorService spoolReplayers;
+
+	// Spooled batches handed to the replayers and not done yet
+	private final Set<Long> replaying = ConcurrentHashMap.newKeySet();
+
+	// Set when a replay finds the server still out of reach, to stop the round
+	private volatile boolean replayHalted;
+
+	// Batches handed to the workers and not started yet, so that a sweep doesn't
+	// hand them over again
+	private final Set<Long> handedOver = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final Map<MailPriority, LaneWaits> laneWaits = new EnumMap<MailPriority, LaneWaits>(MailPriority.class);
+
+	// Encoded content of emails being sent, by email id
+	private RenderCache<EncodedEmail> encodedEmails;
+
+	private String mailDomain;
+
+	// The error column holds a plain varchar
+	private static final int maxErrorLength = 255;
+
+	// Longest a worker waits for the sending budget before putting a batch aside
+	private static final long maxBudgetWaitMillis = 2000;
+
+	@PostConstruct
+	private void initWorkers() {
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		urgentWorker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		spoolReplayers = Executors.newFixedThreadPool(spoolReplayerCount);
+		for (MailPriority lane : MailPriority.values()) {
+			laneWaits.put(lane, new LaneWaits());
+		}
+		encodedEmails = new RenderCache<EncodedEmail>(Math.max(4, workerCount * 2), 60 * 60 * 1000);
+		mailDomain = mailUsername.contains("@") ? mailUsername.substring(mailUsername.indexOf('@') + 1)
+				: "localhost";
+	}
+
+	@PreDestroy
+	private void shutdownWorkers() {
+		workers.shutdown();
+		urgentWorker.shutdown();
+		spoolReplayers.shutdown();
+	}
+
+	/*
+	 * Saves the email to the outbox and returns its id. It is sent in the
+	 * background. List mail is mail to the daveners. The email and its batches
+	 * are saved together, and handed to the workers only once they are committed.
+	 */
+	@Transactional
+	public long enqueue(MailPriority priority, boolean listMail, String subject, String message, String to,
+			String[] bcc, byte[] attachment, String attachmentName) {
+
+		OutboundEmail email = new OutboundEmail();
+		email.setPriority(priority);
+		email.setListMail(listMail);
+		email.setSubject(subject);
+		email.setMessage(message);
+		email.setRecipient(to);
+		email.setAttachment(attachment);
+		email.setAttachmentName(attachmentName);
+		long id = outboundEmailRepository.save(email).getId();
+
+		List<String> recipients = bcc != null ? Arrays.asList(bcc) : Collections.<String>emptyList();
+		List<OutboundBatch> batches = new ArrayList<OutboundBatch>();
+		int size = listMail ? listBatchSize : batchSize;
+
+		/*
+		 * Always at least one batch, which carries the 'to' address. When every
+		 * davener gets a message of their own, the 'to' address gets its own too, so
+		 * it doesn't get a davener's unsubscribe link.
+		 */
+		int from = 0;
+		if (listMail && size == 1 && to != null && !recipients.isEmpty()) {
+			batches.add(batch(id, priority, true, Collections.<String>emptyList()));
+		}
+		do {
+			List<String> share = recipients.subList(from, Math.min(from + size, recipients.size()));
+			batches.add(batch(id, priority, batches.isEmpty(), share));
+			from += size;
+		} while (from < recipients.size());
+
+		List<OutboundBatch> saved = outboundBatchRepository.saveAll(batches);
+		afterCommit(() -> {
+			for (OutboundBatch batch : saved) {
+				submit(batch);
+			}
+		});
+		return id;
+	}
+
+	// Right away when there is no transaction. If the transaction rolls back, there
+	// is nothing to send.
+	private void afterCommit(Runnable action) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			action.run();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				action.run();
+			}
+		});
+	}
+
+	private OutboundBatch batch(long emailId, MailPriority priority, boolean first, List<String> recipients) {
+		OutboundBatch batch = new OutboundBatch();
+		batch.setEmailId(emailId);
+		batch.setPriority(priority);
+		batch.setFirst(first);
+		batch.setRecipients(String.join(",", recipients));
+		batch.setRecipientCount(recipients.size());
+		return batch;
+	}
+
+	public OutboundEmail findEmail(long id) throws ObjectNotFoundException {
+		Optional<OutboundEmail> optionalEmail = outboundEmailRepository.findById(id);
+		if (!optionalEmail.isPresent()) {
+			throw new ObjectNotFoundException("Email with id: " + id);
+		}
+		OutboundEmail email = optionalEmail.get();
+		email.setBatches(outboundBatchRepository.findByEmailIdOrderById(id));
+		return email;
+	}
+
+	// Sends again only the batches of this email that failed. Returns how many.
+	public int retryFailedBatches(long id) throws ObjectNotFoundException {
+		findEmail(id);
+		return requeue(outboundBatchRepository.findIdsByEmailIdAndStatus(id, OutboundStatus.FAILED));
+	}
+
+	public List<DeadLetter> findDeadLetters() {
+		return deadLetterRepository.findByReplayedAtIsNullOrderById();
+	}
+
+	// Queues the given dead letters (or all of them, if none are given) to be sent
+	// again, from the email as it was saved. Returns how many batches were queued.
+	public int replayDeadLetters(List<Long> deadLetterIds) {
+		List<DeadLetter> deadLetters = deadLetterIds == null || deadLetterIds.isEmpty()
+				? deadLetterRepository.findByReplayedAtIsNullOrderById()
+				: deadLetterRepository.findAllById(deadLetterIds);
+
+		List<Long> batchIds = new ArrayList<Long>();
+		for (DeadLetter deadLetter : deadLetters) {
+			if (deadLetter.getReplayedAt() == null) {
+				batchIds.add(deadLetter.getBatchId());
+			}
+		}
+		return requeue(batchIds);
+	}
+
+	private int requeue(List<Long> batchIds) {
+		if (batchIds.isEmpty()) {
+			return 0;
+		}
+		int requeued = outboundBatchRepository.requeueFailed(batchIds);
+		deadLetterRepository.markReplayed(batchIds, LocalDateTime.now());
+
+		List<OutboundBatch> batches = outboundBatchRepository.findAllById(batchIds);
+		Set<Long> emailIds = new HashSet<Long>();
+		for (OutboundBatch batch : batches) {
+			emailIds.add(batch.getEmailId());
+		}
+		for (long emailId : emailIds) {
+			outboundEmailRepository.setOutcome(emailId, OutboundStatus.SENDING, null, null);
+		}
+		for (OutboundBatch batch : batches) {
+			submit(batch);
+		}
+		return requeued;
+	}
+
+	// Whatever was being sent when the application went down is sent again, as is
+	// anything spooled whose file is gone.
+	@EventListener(ApplicationReadyEvent.class)
+	public void recoverOutbox() throws IOException {
+		int interrupted = outboundBatchRepository.changeAllStatus(OutboundStatus.SENDING, OutboundStatus.QUEUED);
+		if (interrupted > 0) {
+			log.info(String.format("Requeued %d email batches that were being sent at shutdown", interrupted));
+		}
+
+		Set<Long> inSpool = new HashSet<Long>();
+		for (SpoolEntry entry : mailSpool.entries()) {
+			inSpool.add(entry.batchId);
+		}
+		for (long batchId : outboundBatchRepository.findIdsByStatus(OutboundStatus.SPOOLED)) {
+			if (!inSpool.contains(batchId)) {
+				outboundBatchRepository.changeStatus(batchId, OutboundStatus.SPOOLED, OutboundStatus.QUEUED);
+			}
+		}
+		sweepOutbox();
+	}
+
+	/*
+	 * Picks up queued batches that were never handed to a worker (e.g. the pool was
+	 * shutting down), and those whose time to be retried has come. A batch still
+	 * SENDING long after it was taken lost its worker on the way, and is queued
+	 * again.
+	 */
+	@Scheduled(fixedDelayString = "${mail.outbox.sweep.millis:60000}", initialDelayString = "${mail.outbox.sweep.millis:60000}")
+	public void sweepOutbox() {
+		int stale = outboundBatchRepository
+				.requeueClaimedBefore(LocalDateTime.now().minus(sendingTimeoutMillis, ChronoUnit.MILLIS));
+		if (stale > 0) {
+			log.warn(String.format("Requeued %d email batches left in the middle of sending", stale));
+		}
+		for (OutboundBatch batch : outboundBatchRepository.findDue(LocalDateTime.now())) {
+			submit(batch);
+		}
+	}
+
+	/*
+	 * Hands the spooled messages to the replayers, urgent first. If the server is
+	 * still out of reach, the first replay to find out stops the rest of the
+	 * round, and the next round tries again.
+	 */
+	@Scheduled(fixedDelayString = "${mail.spool.replay.millis:30000}")
+	public void replaySpool() {
+		List<SpoolEntry> entries;
+		try {
+			entries = mailSpool.entries();
+		} catch (IOException e) {
+			log.warn("Could not read the mail spool: " + e);
+			return;
+		}
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		replayHalted = false;
+		for (SpoolEntry entry : entries) {
+			if (!replaying.add(entry.batchId)) {
+				continue;
+			}
+			try {
+				spoolReplayers.execute(() -> replay(entry));
+			} catch (RejectedExecutionException e) {
+				replaying.remove(entry.batchId);
+			}
+		}
+	}
+
+	public SpoolStatus getSpoolStatus() throws IOException {
+		return mailSpool.getStatus();
+	}
+
+	// How long batches of each lane waited for a worker, since startup
+	public List<LaneWait> getLaneWaits() {
+		// An urgent batch not taken yet is in both queues, and counted once.
+		Set<Runnable> queued = Collections.newSetFromMap(new IdentityHashMap<Runnable, Boolean>());
+		queued.addAll(workers.getQueue());
+		queued.addAll(urgentWorker.getQueue());
+
+		Map<MailPriority, Integer> waiting = new EnumMap<MailPriority, Integer>(MailPriority.class);
+		for (Runnable task : queued) {
+			MailPriority lane = ((BatchTask) task).priority;
+			waiting.put(lane, waiting.getOrDefault(lane, 0) + 1);
+		}
+
+		List<LaneWait> report = new ArrayList<LaneWait>();
+		for (MailPriority lane : MailPriority.values()) {
+			LaneWaits waits = laneWaits.get(lane);
+			synchronized (waits) {
+				report.add(new LaneWait(lane, waiting.getOrDefault(lane, 0), waits.started,
+						waits.started > 0 ? waits.totalNanos / waits.started / 1e6 : 0, waits.maxNanos / 1e6));
+			}
+		}
+		return report;
+	}
+
+	private void submit(OutboundBatch batch) {
+		if (!handedOver.add(batch.getId())) {
+			return;
+		}
+		BatchTask task = new BatchTask(batch.getId(), batch.getPriority(), sequence.incrementAndGet());
+		try {
+			workers.execute(task);
+			if (batch.getPriority() == MailPriority.URGENT) {
+				urgentWorker.execute(task);
+			}
+		} catch (RejectedExecutionException e) {
+			// Still queued in the table - the next sweep will get to it.
+			handedOver.remove(batch.getId());
+		}
+	}
+
+	private void send(BatchTask task) {
+		long batchId = task.batchId;
+		handedOver.remove(batchId);
+
+		// The copy in the other queue has nothing left to do.
+		if (task.priority == MailPriority.URGENT) {
+			workers.remove(task);
+			urgentWorker.remove(task);
+		}
+
+		// Another worker may already have taken it (e.g. an urgent batch, which is
+		// handed to two workers).
+		if (outboundBatchRepository.claim(batchId, LocalDateTime.now()) == 0) {
+			return;
+		}
+		recordWait(task);
+		sendClaimed(batchId);
+	}
+
+	/*
+	 * A claimed batch always leaves SENDING: whatever goes wrong on the way (e.g.
+	 * the database gone for a moment) fails the batch the usual way, or puts it
+	 * back in the queue if it couldn't even be read. If that doesn't work either,
+	 * the sweep takes it back after mail.outbox.sending.timeout.millis.
+	 */
+	private void sendClaimed(long batchId) {
+		OutboundBatch batch = null;
+		boolean settled = false;
+		try {
+			batch = outboundBatchRepository.findById(batchId).get();
+			outboundEmailRepository.markSending(batch.getEmailId());
+
+			// Within the lane's sending budget: a short wait is waited out, a longer one
+			// puts the batch back until then, so that it doesn't hold up a worker.
+			int recipientCount = batch.getRecipientCount() + (batch.isFirst() ? 1 : 0);
+			long wait;
+			while ((wait = rateLimiter.reserve(batch.getPriority(), recipientCount)) > 0) {
+				if (wait > maxBudgetWaitMillis) {
+					outboundBatchRepository.defer(batchId, LocalDateTime.now().plus(wait, ChronoUnit.MILLIS));
+					return;
+				}
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					outboundBatchRepository.defer(batchId, null);
+					return;
+				}
+			}
+
+			sendMessage(batch);
+			settled = true;
+			updateEmailStatus(batch.getEmailId());
+		} catch (RuntimeException e) {
+			// Once the outcome is saved, the next batch of the email (or a sweep) will
+			// bring the email up to date.
+			if (settled) {
+				log.warn(String.format("Could not update the status of email %d: %s", batch.getEmailId(), e));
+				return;
+			}
+			log.error(String.format("Could not send batch %d: %s", batchId, e));
+			try {
+				if (batch != null) {
+					failed(batch, e);
+				} else {
+					outboundBatchRepository.defer(batchId, null);
+				}
+			} catch (RuntimeException stillFailing) {
+				log.error(String.format("Batch %d is left for the sweep to take back: %s", batchId, stillFailing));
+			}
+		}
+	}
+
+	// Sends the batch's message and saves the outcome: sent, spooled, or failed
+	private void sendMessage(OutboundBatch batch) {
+		long batchId = batch.getId();
+		MimeMessage message = null;
+		try {
+			String[] bcc = batch.getRecipients() != null && !batch.getRecipients().isEmpty()
+					? batch.getRecipients().split(",")
+					: null;
+			EncodedEmail encoded = encodedEmail(batch.getEmailId());
+			// Without a secret there are no davener links to give, only the list's address.
+			boolean toOneDavener = unsubscribeService.isEnabled() && bcc != null && bcc.length == 1
+					&& !(batch.isFirst() && encoded.hasTo());
+			if (encoded.isPersonal() && toOneDavener) {
+				message = encoded.forDavener(javaMailSender.getSession(), bcc[0],
+						HtmlTemplate.escape(unsubscribeService.link(bcc[0])));
+			} else {
+				message = encoded.forRecipients(javaMailSender.getSession(), batch.isFirst(), bcc);
+			}
+			if (encoded.isListMail() && toOneDavener) {
+				unsubscribeService.addHeaders(message, bcc[0]);
+			} else if (encoded.isListMail()) {
+				unsubscribeService.addMailtoHeader(message);
+			}
+			transportPool.send(message);
+			outboundBatchRepository.markSent(batchId, LocalDateTime.now());
+		} catch (Exception e) {
+			if (message == null || !spooled(batch, message, e)) {
+				failedOrPartlySent(batch, e);
+			}
+		}
+	}
+
+	// Writes the message to the spool if the server is out of reach. Returns false
+	// if the batch should fail the usual way instead.
+	private boolean spooled(OutboundBatch batch, MimeMessage message, Exception e) {
+		if (!spoolEnabled || !isUnreachable(e)) {
+			return false;
+		}
+		try {
+			mailSpool.write(message, batch.getPriority(), batch.getId());
+		} catch (Exception spoolError) {
+			log.error(String.format("Could not spool batch %d of email %d: %s", batch.getId(), batch.getEmailId(),
+					spoolError));
+			return false;
+		}
+		log.warn(String.format("Mail server out of reach, spooled batch %d of email %d: %s", batch.getId(),
+				batch.getEmailId(), e));
+		outboundBatchRepository.markSpooled(batch.getId(), errorText(e));
+		return true;
+	}
+
+	/*
+	 * Sends a spooled message as it is. A message the server fails for any reason
+	 * but being out of reach leaves the spool, and its batch is retried or given
+	 * up on as usual (from the outbox).
+	 */
+	private void replay(SpoolEntry entry) {
+		try {
+			if (replayHalted) {
+				return;
+			}
+			Optional<OutboundBatch> optionalBatch = outboundBatchRepository.findById(entry.batchId);
+			if (!optionalBatch.isPresent() || optionalBatch.get().getStatus() != OutboundStatus.SPOOLED) {
+				mailSpool.discard(entry);
+				return;
+			}
+			OutboundBatch batch = optionalBatch.get();
+
+			// Out of budget for now - the next round will get to it.
+			if (rateLimiter.reserve(batch.getPriority(), batch.getRecipientCount() + (batch.isFirst() ? 1 : 0)) > 0) {
+				return;
+			}
+
+			MimeMessage message = mailSpool.read(entry, javaMailSender.getSession());
+			try {
+				transportPool.send(message);
+			} catch (MessagingException e) {
+				if (isUnreachable(e)) {
+					replayHalted = true;
+					return;
+				}
+				mailSpool.discard(entry);
+				failedOrPartlySent(batch, e);
+				updateEmailStatus(batch.getEmailId());
+				return;
+			}
+
+			mailSpool.sent(entry);
+			outboundBatchRepository.markSent(batch.getId(), LocalDateTime.now());
+			updateEmailStatus(batch.getEmailId());
+		} catch (IOException | MessagingException | RuntimeException e) {
+			log.warn(String.format("Could not replay spooled batch %d: %s", entry.batchId, e));
+		} finally {
+			replaying.remove(entry.batchId);
+		}
+	}
+
+	/*
+	 * A passing failure (a timeout, a dropped connection, the server asking to try
+	 * later) is retried after a delay that doubles with every attempt, give or take
+	 * a random half so that failed batches don't all come back at once. A batch
+	 * the server refused for good, or that ran out of attempts, becomes a dead
+	 * letter.
+	 */
+	private void failed(OutboundBatch batch, Exception e) {
+		failed(batch, e, isPermanent(e));
+	}
+
+	private void failed(OutboundBatch batch, Exception e, boolean permanent) {
+		String error = errorText(e);
+		int attempts = batch.getAttempts() + 1;
+
+		if (!permanent && attempts < maxAttempts) {
+			long delay = Math.min(retryBaseMillis << Math.min(attempts - 1, 30), retryMaxMillis);
+			delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+			log.warn(String.format("Could not send batch %d of email %d (attempt %d), retrying in %d seconds: %s",
+					batch.getId(), batch.getEmailId(), attempts, delay / 1000, e));
+			outboundBatchRepository.scheduleRetry(batch.getId(), error,
+					LocalDateTime.now().plus(delay, ChronoUnit.MILLIS));
+			return;
+		}
+
+		log.warn(String.format("Giving up on batch %d of email %d after %d attempts: %s", batch.getId(),
+				batch.getEmailId(), attempts, e));
+		outboundBatchRepository.markFailed(batch.getId(), error);
+
+		Optional<OutboundEmail> email = outboundEmailRepository.findById(batch.getEmailId());
+		deadLetterRepository.save(new DeadLetter(0, batch.getEmailId(), batch.getId(),
+				email.isPresent() ? email.get().getSubject() : null, batch.getRecipients(), attempts, error,
+				LocalDateTime.now(), null));
+	}
+
+	private void failedOrPartlySent(OutboundBatch batch, Exception e) {
+		if (!(e instanceof SendFailedException) || !partlySent(batch, (SendFailedException) e)) {
+			failed(batch, e);
+		}
+	}
+
+	/*
+	 * The server accepted some of the batch's addresses and refused others, so
+	 * one bad address doesn't hold back the rest. (With mail.smtp.sendpartial
+	 * the message went to the accepted addresses; without it, to none.) The
+	 * batch is split by what became of each address: the batch itself keeps the
+	 * first share, and each other share is a new batch of the same email.
+	 * Addresses the message went to are sent, those refused for good fail (and
+	 * become a dead letter), and those refused for now are retried. Returns false
+	 * if all the addresses came to the same thing, to fail the batch as a whole.
+	 */
+	private boolean partlySent(OutboundBatch batch, SendFailedException e) {
+		List<String> sent = addresses(e.getValidSentAddresses());
+		List<String> refused = addresses(e.getInvalidAddresses());
+		List<String> unsent = addresses(e.getValidUnsentAddresses());
+		if ((sent.isEmpty() ? 0 : 1) + (refused.isEmpty() ? 0 : 1) + (unsent.isEmpty() ? 0 : 1) < 2) {
+			return false;
+		}
+		log.warn(String.format("Batch %d of email %d reached %d of its addresses, %d refused, %d to retry: %s",
+				batch.getId(), batch.getEmailId(), sent.size(), refused.size(), unsent.size(), e));
+
+		// The 'to' address of a first batch is the one address not in its bcc list.
+		boolean first = batch.isFirst();
+		Set<String> bcc = new HashSet<String>();
+		if (batch.getRecipients() != null && !batch.getRecipients().isEmpty()) {
+			for (String address : batch.getRecipients().split(",")) {
+				bcc.add(address.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+
+		OutboundBatch share = null;
+		if (!sent.isEmpty()) {
+			share = share(batch, share, sent, first, bcc);
+			outboundBatchRepository.markSent(share.getId(), LocalDateTime.now());
+		}
+		if (!refused.isEmpty()) {
+			share = share(batch, share, refused, first, bcc);
+			failed(share, e, true);
+		}
+		if (!unsent.isEmpty()) {
+			share = share(batch, share, unsent, first, bcc);
+			failed(share, e, false);
+		}
+		return true;
+	}
+
+	// The batch itself narrowed down to the addresses, or a new batch for them if
+	// the batch already has its share. A new one is saved as taken by this worker.
+	private OutboundBatch share(OutboundBatch batch, OutboundBatch previous, List<String> addresses,
+			boolean first, Set<String> bcc) {
+		List<String> recipients = new ArrayList<String>();
+		boolean withTo = false;
+		for (String address : addresses) {
+			if (bcc.contains(address.toLowerCase(Locale.ROOT))) {
+				recipients.add(address);
+			} else {
+				withTo = first;
+			}
+		}
+
+		OutboundBatch share = previous == null ? batch
+				: batch(batch.getEmailId(), batch.getPriority(), withTo, recipients);
+		share.setFirst(withTo);
+		share.setRecipients(String.join(",", recipients));
+		share.setRecipientCount(recipients.size());
+		share.setStatus(OutboundStatus.SENDING);
+		share.setAttempts(batch.getAttempts());
+		share.setClaimedAt(LocalDateTime.now());
+		return outboundBatchRepository.save(share);
+	}
+
+	private static List<String> addresses(Address[] addresses) {
+		List<String> list = new ArrayList<String>();
+		if (addresses != null) {
+			for (Address address : addresses) {
+				list.add(address instanceof InternetAddress ? ((InternetAddress) address).getAddress()
+						: address.toString());
+			}
+		}
+		return list;
+	}
+
+	private String errorText(Exception e) {
+		String error = e.toString();
+		return error.length() > maxErrorLength ? error.substring(0, maxErrorLength) : error;
+	}
+
+	// No connection to the server at all, or it wouldn't let us log in - nothing
+	// will get through until that changes.
+	private boolean isUnreachable(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MailConnectException || cause instanceof AuthenticationFailedException
+					|| cause instanceof ConnectException || cause instanceof UnknownHostException
+					|| cause instanceof NoRouteToHostException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The server's 5xx replies (bad address, message refused) won't change by
+	// trying again. Neither will an address that can't be parsed. (A
+	// MessagingException's cause is its next exception, e.g. the failed addresses.)
+	private boolean isPermanent(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AddressException) {
+				return true;
+			}
+			if (cause instanceof SMTPSendFailedException
+					&& ((SMTPSendFailedException) cause).getReturnCode() >= 500) {
+				return true;
+			}
+			if (cause instanceof SMTPAddressFailedException
+					&& ((SMTPAddressFailedException) cause).getReturnCode() >= 500) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * The email is sent once all its batches are, and failed if any of them failed
+	 * (the rest having been sent or failed too). Each batch's outcome is saved
+	 * before this is called, so whichever batch finishes last sees them all done.
+	 * Until then the email stays as it is - nothing here writes SENDING, which
+	 * could otherwise land after the last batch's outcome. The outcome itself is
+	 * only written if the batches still say so (see OutboundEmailRepository).
+	 */
+	private void updateEmailStatus(long emailId) {
+		int failed = 0;
+		int pending = 0;
+		List<OutboundStatus> statuses = outboundBatchRepository.findStatusesByEmailId(emailId);
+		for (OutboundStatus status : statuses) {
+			if (status == OutboundStatus.FAILED) {
+				failed++;
+			} else if (status != OutboundStatus.SENT) {
+				pending++;
+			}
+		}
+
+		if (pending > 0) {
+			return;
+		}
+		if (failed > 0) {
+			outboundEmailRepository.markFailedIfDone(emailId,
+					String.format("%d of %d batches failed", failed, statuses.size()));
+		} else {
+			outboundEmailRepository.markSentIfDone(emailId, LocalDateTime.now());
+		}
+	}
+
+	/*
+	 * The email's content is encoded once, when its first batch is sent, and kept
+	 * for the rest of its batches (and any retries soon after). Two workers
+	 * starting on the same email at once may both encode it, which does no harm.
+	 *
+	 * List mail with a place for the unsubscribe link gets the mailto: address
+	 * there, and each davener sent a message of their own gets their link
+	 * instead.
+	 */
+	private EncodedEmail encodedEmail(long emailId) throws Exception {
+		String key = String.valueOf(emailId);
+		EncodedEmail encoded = encodedEmails.get(key);
+		if (encoded == null) {
+			OutboundEmail email = outboundEmailRepository.findById(emailId).get();
+			String html = email.getMessage();
+			if (email.isListMail() && html.contains(UnsubscribeService.linkPlaceholder)) {
+				encoded = EncodedEmail.encode(
+						toMimeMessage(email, html.replace(UnsubscribeService.linkPlaceholder,
+								HtmlTemplate.escape(unsubscribeService.mailtoLink()))),
+						email.getRecipient(), mailDomain, true, html, javaMailSender.getSession());
+			} else {
+				encoded = EncodedEmail.encode(toMimeMessage(email, html), email.getRecipient(), mailDomain,
+						email.isListMail());
+			}
+			encodedEmails.put(key, encoded);
+		}
+		return encoded;
+	}
+
+	// Everything but the recipients. The attachment is sent straight from memory,
+	// its type is taken from the extension of attachmentName.
+	private MimeMessage toMimeMessage(OutboundEmail email, String html) throws Exception {
+		MimeMessage msg = javaMailSender.createMimeMessage();
+
+		// true = multipart message
+		MimeMessageHelper helper = new MimeMessageHelper(msg, true);
+
+		helper.setSubject(email.getSubject());
+
+		// true = html. Default: text/plain
+		helper.setText(html, true);
+
+		if (email.getAttachment() != null) {
+			helper.addAttachment(email.getAttachmentName(), new ByteArrayResource(email.getAttachment()));
+		}
+		return msg;
+	}
+
+	private void recordWait(BatchTask task) {
+		long waited = System.nanoTime() - task.submittedAt;
+		LaneWaits waits = laneWaits.get(task.priority);
+		synchronized (waits) {
+			waits.started++;
+			waits.totalNanos += waited;
+			waits.maxNanos = Math.max(waits.maxNanos, waited);
+		}
+	}
+
+	// A batch handed to the workers. Urgent comes before transactional before bulk,
+	// and within a lane the first handed over goes first.
+	private class BatchTask implements Runnable, Comparable<BatchTask> {
+
+		private final long batchId;
+		private final MailPriority priority;
+		private final long sequence;
+		private final long submittedAt = System.nanoTime();
+
+		private BatchTask(long batchId, MailPriority priority, long sequence) {
+			this.batchId = batchId;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			send(this);
+		}
+
+		@Override
+		public int compareTo(BatchTask other) {
+			int byPriority = priority.compareTo(other.priority);
+			return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static class LaneWaits {
+
+		private long started;
+		private long totalNanos;
+		private long maxNanos;
+	}
+}
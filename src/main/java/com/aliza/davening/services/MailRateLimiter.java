@@ -0,0 +1,134 @@
+package com.aliza.davening.services;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.TokenBucket;
+import com.aliza.davening.entities.MailBudget;
+import com.aliza.davening.entities.MailPriority;
+
+/*
+ * Keeps outgoing mail within what the mail provider allows (Gmail throttles an
+ * account that sends too much too fast). Every lane has its own budget of
+ * messages and of recipients, per second and per day, so that a weekly run
+ * can never use up what urgent emails need. Limits are read from
+ * mail.limit.<lane>.<messages|recipients>.per.<second|day>; 0 turns a limit off.
+ * The lanes' budgets together should stay within the provider's limits.
+ */
+@Service
+public class MailRateLimiter {
+
+	@Autowired
+	private Environment environment;
+
+	private final Map<MailPriority, LaneBudget> budgets = new EnumMap<MailPriority, LaneBudget>(MailPriority.class);
+
+	@PostConstruct
+	private void initBudgets() {
+		for (MailPriority lane : MailPriority.values()) {
+			budgets.put(lane,
+					new LaneBudget(bucket(lane, "messages.per.second", false),
+							bucket(lane, "recipients.per.second", false), bucket(lane, "messages.per.day", true),
+							bucket(lane, "recipients.per.day", true)));
+		}
+	}
+
+	/*
+	 * Takes one message and its recipients out of the lane's budget and returns 0,
+	 * or, if the budget does not allow it yet, takes nothing and returns how many
+	 * milliseconds to wait.
+	 */
+	public synchronized long reserve(MailPriority lane, int recipients) {
+		LaneBudget budget = budgets.get(lane);
+		long now = System.currentTimeMillis();
+
+		long wait = 0;
+		wait = Math.max(wait, millisUntil(budget.messagesPerSecond, 1, now));
+		wait = Math.max(wait, millisUntil(budget.recipientsPerSecond, recipients, now));
+		wait = Math.max(wait, millisUntil(budget.messagesPerDay, 1, now));
+		wait = Math.max(wait, millisUntil(budget.recipientsPerDay, recipients, now));
+		if (wait > 0) {
+			budget.deferred++;
+			return wait;
+		}
+
+		take(budget.messagesPerSecond, 1, now);
+		take(budget.recipientsPerSecond, recipients, now);
+		take(budget.messagesPerDay, 1, now);
+		take(budget.recipientsPerDay, recipients, now);
+		budget.messages++;
+		budget.recipients += recipients;
+		return 0;
+	}
+
+	public synchronized List<MailBudget> getBudgets() {
+		long now = System.currentTimeMillis();
+		List<MailBudget> report = new ArrayList<MailBudget>();
+		for (MailPriority lane : MailPriority.values()) {
+			LaneBudget budget = budgets.get(lane);
+			report.add(new MailBudget(lane, limit(budget.messagesPerSecond), available(budget.messagesPerSecond, now),
+					limit(budget.recipientsPerSecond), available(budget.recipientsPerSecond, now),
+					limit(budget.messagesPerDay), available(budget.messagesPerDay, now),
+					limit(budget.recipientsPerDay), available(budget.recipientsPerDay, now), budget.messages,
+					budget.recipients, budget.deferred));
+		}
+		return report;
+	}
+
+	private TokenBucket bucket(MailPriority lane, String name, boolean perDay) {
+		double limit = environment.getProperty("mail.limit." + lane.name().toLowerCase() + "." + name, Double.class,
+				0.0);
+		if (limit <= 0) {
+			return null;
+		}
+		return perDay ? TokenBucket.perDay(limit) : TokenBucket.perSecond(limit);
+	}
+
+	private long millisUntil(TokenBucket bucket, double wanted, long now) {
+		return bucket != null ? bucket.millisUntil(wanted, now) : 0;
+	}
+
+	private void take(TokenBucket bucket, double wanted, long now) {
+		if (bucket != null) {
+			bucket.take(wanted, now);
+		}
+	}
+
+	// Unlimited shows as 0
+	private double limit(TokenBucket bucket) {
+		return bucket != null ? bucket.getCapacity() : 0;
+	}
+
+	private double available(TokenBucket bucket, long now) {
+		return bucket != null ? bucket.available(now) : 0;
+	}
+
+	private static class LaneBudget {
+
+		private final TokenBucket messagesPerSecond;
+		private final TokenBucket recipientsPerSecond;
+		private final TokenBucket messagesPerDay;
+		private final TokenBucket recipientsPerDay;
+
+		// Since startup
+		private long messages;
+		private long recipients;
+		private long deferred;
+
+		private LaneBudget(TokenBucket messagesPerSecond, TokenBucket recipientsPerSecond,
+				TokenBucket messagesPerDay, TokenBucket recipientsPerDay) {
+			this.messagesPerSecond = messagesPerSecond;
+			this.recipientsPerSecond = recipientsPerSecond;
+			this.messagesPerDay = messagesPerDay;
+			this.recipientsPerDay = recipientsPerDay;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.aliza.davening.services;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.entities.MailPriority;
+import com.aliza.davening.entities.SpoolStatus;
+
+/*
+ * Messages that could not be sent because the mail server was out of reach,
+ * kept as .eml files - exactly as they would have been sent, recipients and
+ * all - until MailDispatcher replays them. Nothing has to be rendered or
+ * encoded again to send them.
+ *
+ * Files are only ever added and deleted, never changed. A message is written
+ * to a .tmp file, forced to disk and then renamed to .eml, so an .eml file is
+ * always complete. Forcing the directory (for the rename) is shared: writers
+ * that arrive while a sync is in progress are synced together by the next one,
+ * so a burst of messages costs one directory sync per round instead of one
+ * per message.
+ *
+ * File names sort urgent first, then by the time they were spooled:
+ * <lane>-<millis>-<sequence>-<batch id>.eml
+ */
+@Service
+public class MailSpool {
+
+	private final Logger log = LoggerFactory.getLogger(MailSpool.class);
+
+	@Value("${mail.spool.directory:spool}")
+	private String directoryName;
+
+	private Path directory;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Written but not synced yet, and the writes counted so far and synced so far
+	private List<Path> unsynced = new ArrayList<Path>();
+	private long written;
+	private long synced;
+
+	// One sync at a time
+	private final Object syncLock = new Object();
+
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	@PostConstruct
+	private void openDirectory() throws IOException {
+		directory = Paths.get(directoryName);
+		Files.createDirectories(directory);
+
+		// Left from a write that never finished - that batch was still being sent,
+		// and is sent again from the outbox.
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*.tmp")) {
+			for (Path leftover : leftovers) {
+				Files.delete(leftover);
+			}
+		}
+
+		int depth = entries().size();
+		if (depth > 0) {
+			log.info(String.format("%d spooled messages in %s waiting to be sent", depth,
+					directory.toAbsolutePath()));
+		}
+	}
+
+	// Returns once the message is safely on disk.
+	public void write(MimeMessage message, MailPriority lane, long batchId) throws IOException, MessagingException {
+		String name = String.format("%d-%013d-%06d-%d", lane.ordinal(), System.currentTimeMillis(),
+				sequence.incrementAndGet() % 1000000, batchId);
+		Path tmp = directory.resolve(name + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(
+				Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+			message.writeTo(out);
+		}
+
+		long ticket;
+		synchronized (this) {
+			unsynced.add(tmp);
+			ticket = ++written;
+		}
+		sync(ticket);
+		spooled.incrementAndGet();
+	}
+
+	// Spooled messages, in the order they should be sent
+	public List<SpoolEntry> entries() throws IOException {
+		List<SpoolEntry> entries = new ArrayList<SpoolEntry>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.eml")) {
+			for (Path file : files) {
+				SpoolEntry entry = SpoolEntry.parse(file);
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+		}
+		Collections.sort(entries, Comparator.comparing(entry -> entry.file.getFileName().toString()));
+		return entries;
+	}
+
+	public MimeMessage read(SpoolEntry entry, Session session) throws IOException, MessagingException {
+		return new MimeMessage(session, new SharedByteArrayInputStream(Files.readAllBytes(entry.file)));
+	}
+
+	// The message was sent - its file is removed.
+	public void sent(SpoolEntry entry) throws IOException {
+		Files.deleteIfExists(entry.file);
+		replayed.incrementAndGet();
+	}
+
+	// The message is not going to be sent from the spool.
+	public void discard(SpoolEntry entry) throws IOException {
+		Files.deleteIfExists(entry.file);
+	}
+
+	public SpoolStatus getStatus() throws IOException {
+		List<SpoolEntry> entries = entries();
+		long bytes = 0;
+		long oldest = 0;
+		long now = System.currentTimeMillis();
+		for (SpoolEntry entry : entries) {
+			bytes += Files.size(entry.file);
+			oldest = Math.max(oldest, now - entry.spooledAt);
+		}
+		return new SpoolStatus(entries.size(), bytes, oldest / 1000, spooled.get(), replayed.get(), syncs.get());
+	}
+
+	/*
+	 * Syncs everything written up to the given write, along with whatever else is
+	 * waiting. A writer whose message was already synced by another's round
+	 * returns at once. If a round fails, what it did not get to is left for the
+	 * next one.
+	 */
+	private void sync(long ticket) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= ticket) {
+				return;
+			}
+			List<Path> round;
+			long upTo;
+			synchronized (this) {
+				round = unsynced;
+				unsynced = new ArrayList<Path>();
+				upTo = written;
+			}
+
+			int done = 0;
+			try {
+				for (Path tmp : round) {
+					try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+						channel.force(false);
+					}
+					String name = tmp.getFileName().toString();
+					Files.move(tmp, tmp.resolveSibling(name.substring(0, name.length() - 4) + ".eml"),
+							StandardCopyOption.ATOMIC_MOVE);
+					done++;
+				}
+				forceDirectory();
+			} catch (IOException e) {
+				synchronized (this) {
+					unsynced.addAll(0, round.subList(done, round.size()));
+				}
+				throw e;
+			}
+			synced = upTo;
+			syncs.incrementAndGet();
+		}
+	}
+
+	// So the renames survive a crash. Not every system can open a directory for this.
+	private void forceDirectory() {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			log.debug("Could not sync the spool directory: " + e);
+		}
+	}
+
+	static class SpoolEntry {
+
+		final Path file;
+		final MailPriority lane;
+		final long spooledAt;
+		final long batchId;
+
+		private SpoolEntry(Path file, MailPriority lane, long spooledAt, long batchId) {
+			this.file = file;
+			this.lane = lane;
+			this.spooledAt = spooledAt;
+			this.batchId = batchId;
+		}
+
+		// Null for a file that isn't named like a spooled message
+		private static SpoolEntry parse(Path file) {
+			String name = file.getFileName().toString();
+			String[] parts = name.substring(0, name.length() - 4).split("-");
+			try {
+				return new SpoolEntry(file, MailPriority.values()[Integer.parseInt(parts[0])],
+						Long.parseLong(parts[1]), Long.parseLong(parts[3]));
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.aliza.davening.services;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.entities.MailMetrics;
+
+/*
+ * Keeps authenticated SMTP connections open between messages, so that a run of
+ * emails (a weekly list in batches, the expiring names each night) pays for the
+ * TCP, TLS and login handshake once per connection instead of once per email.
+ *
+ * A connection that sat idle for a while is checked (a NOOP) before it is used
+ * again, and one idle for longer than mail.transport.idle.millis is closed, as
+ * the server would drop it anyway. A connection that failed a send, for any
+ * reason, is closed rather than handed out again.
+ */
+@Service
+public class SmtpTransportPool {
+
+	private final Logger log = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+	@Autowired
+	private JavaMailSenderImpl javaMailSender;
+
+	// Connections idle for longer than this are checked before they are reused
+	@Value("${mail.transport.check.millis:30000}")
+	private long checkAfterMillis;
+
+	@Value("${mail.transport.idle.millis:120000}")
+	private long maxIdleMillis;
+
+	// Connected transports not in use right now, the most recently used first
+	private final Deque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong sendNanos = new AtomicLong();
+
+	// The message goes out as it is - its headers should already be set and saved.
+	public void send(MimeMessage message) throws MessagingException {
+
+		PooledTransport pooled = borrow();
+		long start = System.nanoTime();
+		boolean sent = false;
+		try {
+			pooled.transport.sendMessage(message, message.getAllRecipients());
+			sent = true;
+		} finally {
+			// Whatever went wrong, the connection may be in the middle of a command.
+			if (sent) {
+				giveBack(pooled);
+			} else {
+				close(pooled);
+			}
+		}
+		sendNanos.addAndGet(System.nanoTime() - start);
+		messages.incrementAndGet();
+	}
+
+	public MailMetrics getMetrics() {
+		long sent = messages.get();
+		int idleNow;
+		synchronized (idle) {
+			idleNow = idle.size();
+		}
+		return new MailMetrics(handshakes.get(), sent,
+				sent > 0 ? sendNanos.get() / sent / 1e6 : 0, idleNow);
+	}
+
+	// Closes connections the server is likely to have given up on.
+	@Scheduled(fixedDelayString = "${mail.transport.idle.millis:120000}")
+	public void closeIdle() {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			Iterator<PooledTransport> it = idle.iterator();
+			while (it.hasNext()) {
+				PooledTransport pooled = it.next();
+				if (now - pooled.lastUsed > maxIdleMillis) {
+					it.remove();
+					close(pooled);
+				}
+			}
+		}
+	}
+
+	@PreDestroy
+	public void closeAll() {
+		synchronized (idle) {
+			for (PooledTransport pooled : idle) {
+				close(pooled);
+			}
+			idle.clear();
+		}
+	}
+
+	private PooledTransport borrow() throws MessagingException {
+		while (true) {
+			PooledTransport pooled;
+			synchronized (idle) {
+				pooled = idle.pollFirst();
+			}
+			if (pooled == null) {
+				return connect();
+			}
+			if (System.currentTimeMillis() - pooled.lastUsed < checkAfterMillis || pooled.transport.isConnected()) {
+				return pooled;
+			}
+			close(pooled);
+		}
+	}
+
+	private void giveBack(PooledTransport pooled) {
+		pooled.lastUsed = System.currentTimeMillis();
+		synchronized (idle) {
+			idle.addFirst(pooled);
+		}
+	}
+
+	private PooledTransport connect() throws MessagingException {
+		Transport transport = javaMailSender.getSession().getTransport(javaMailSender.getProtocol());
+		transport.connect(javaMailSender.getHost(), javaMailSender.getPort(), javaMailSender.getUsername(),
+				javaMailSender.getPassword());
+		handshakes.incrementAndGet();
+		return new PooledTransport(transport);
+	}
+
+	private void close(PooledTransport pooled) {
+		try {
+			pooled.transport.close();
+		} catch (MessagingException e) {
+			log.debug("Could not close an SMTP connection cleanly: " + e);
+		}
+	}
+
+	private static class PooledTransport {
+
+		private final Transport transport;
+
+		private long lastUsed = System.currentTimeMillis();
+
+		private PooledTransport(Transport transport) {
+			this.transport = transport;
+		}
+	}
+}
@@ -10,7 +10,7 @@ import org.springframework.stereotype.Service;
 
 import com.aliza.davening.EmailScheme;
 import com.aliza.davening.SchemeValues;
-import com.aliza.davening.entities.Admin;
+import com.aliza.davening.WeeklyArtifactStore;
 import com.aliza.davening.entities.Category;
 import com.aliza.davening.entities.Davenfor;
 import com.aliza.davening.entities.Submitter;
@@ -18,7 +18,6 @@ import com.aliza.davening.exceptions.EmailException;
 import com.aliza.davening.exceptions.EmptyInformationException;
 import com.aliza.davening.exceptions.ObjectNotFoundException;
 import com.aliza.davening.exceptions.PermissionException;
-import com.aliza.davening.repositories.AdminRepository;
 import com.aliza.davening.repositories.CategoryRepository;
 import com.aliza.davening.repositories.DavenforRepository;
 import com.aliza.davening.repositories.SubmitterRepository;
@@ -36,24 +35,14 @@ public class SubmitterService {
 	SubmitterRepository submitterRepository;
 
 	@Autowired
-	AdminRepository adminRepository;
+	AdminNotifier adminNotifier;
 
 	@Autowired
-	EmailSender emailSender;
+	WeeklyArtifactStore weeklyArtifactStore;
 
 	// All submitter functions receive his email address and allow him to proceed if
 	// his email matches davenfor.getSubmitter().getEmail()
 
-	private Admin getMyGroupSettings(long adminId) throws ObjectNotFoundException {
-
-		Optional<Admin> groupSettings = adminRepository.findById(adminId);
-		if (!groupSettings.isPresent()) {
-			throw new ObjectNotFoundException("Davening group with id " + adminId);
-		}
-		return groupSettings.get();
-
-	}
-
 	// According to email address submitter can see all names he submitted.
 	public List<Davenfor> getAllSubmitterDavenfors(String email) throws ObjectNotFoundException {
 
@@ -103,15 +92,14 @@ public class SubmitterService {
 		davenfor.setExpireAt(LocalDate.now().plusDays(davenfor.getCategory().getUpdateRate()));
 
 		davenforRepository.save(davenfor);
+		weeklyArtifactStore.invalidate(davenfor.getCategory().getId());
 
-		// If admin's setting defines that admin should get an email upon new name being
-		// added:
-		if (getMyGroupSettings(SchemeValues.adminId).isNewNamePrompt()) {
-			String subject = EmailScheme.getInformAdminOfNewNameSubject();
-			String message = String.format(EmailScheme.getInformAdminOfNewName(), davenfor.getNameEnglish(),
-					davenfor.getNameHebrew(), davenfor.getCategory().getEnglish(), submitterEmail);
-			emailSender.informAdmin(subject, message);
-		}
+		// Sent only if admin's setting defines that admin should get an email upon new
+		// name being added (possibly in a digest, see AdminNotifier).
+		String subject = EmailScheme.getInformAdminOfNewNameSubject();
+		String message = EmailScheme.getInformAdminOfNewNameTemplate().render(davenfor.getNameEnglish(),
+				davenfor.getNameHebrew(), davenfor.getCategory().getEnglish(), submitterEmail);
+		adminNotifier.notifyAdmin(subject, message);
 
 		return davenfor;
 
@@ -165,13 +153,15 @@ public class SubmitterService {
 
 		davenforRepository.save(davenforToUpdate);
 
-		if (getMyGroupSettings(SchemeValues.adminId).isNewNamePrompt()) {
-			String subject = EmailScheme.getInformAdminOfUpdateSubject();
-			String message = String.format(EmailScheme.getInformAdminOfUpdate(), submitterEmail,
-					davenforToUpdate.getNameEnglish(), davenforToUpdate.getNameHebrew(),
-					davenforToUpdate.getCategory().getEnglish());
-			emailSender.informAdmin(subject, message);
-		}
+		// The name may have moved from one category to another - both lists changed.
+		weeklyArtifactStore.invalidate(optionalDavenfor.get().getCategory().getId());
+		weeklyArtifactStore.invalidate(davenforToUpdate.getCategory().getId());
+
+		String subject = EmailScheme.getInformAdminOfUpdateSubject();
+		String message = EmailScheme.getInformAdminOfUpdateTemplate().render(submitterEmail,
+				davenforToUpdate.getNameEnglish(), davenforToUpdate.getNameHebrew(),
+				davenforToUpdate.getCategory().getEnglish());
+		adminNotifier.notifyAdmin(subject, message);
 
 		return davenforToUpdate;
 
@@ -216,6 +206,7 @@ public class SubmitterService {
 		String email = submitterEmail.trim();
 		if (davenforToDelete.getSubmitterEmail().equalsIgnoreCase(email)) {
 			davenforRepository.delete(davenforToDelete);
+			weeklyArtifactStore.invalidate(davenforToDelete.getCategory().getId());
 		} else {
 			throw new PermissionException(
 					"This name is registered under a different email address.  You do not have the permission to delete it.");
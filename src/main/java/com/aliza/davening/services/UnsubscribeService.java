@@ -0,0 +1,208 @@
+package com.aliza.davening.services;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.aliza.davening.DavenerSegments;
+import com.aliza.davening.EmailScheme;
+import com.aliza.davening.HtmlTemplate;
+import com.aliza.davening.WeeklyArtifactStore;
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davener;
+import com.aliza.davening.exceptions.ObjectNotFoundException;
+import com.aliza.davening.exceptions.PermissionException;
+import com.aliza.davening.repositories.CategoryRepository;
+import com.aliza.davening.repositories.DavenerRepository;
+
+/*
+ * Lets daveners leave the list from the email itself. Each davener's link
+ * carries their address and a token signed with mail.unsubscribe.secret
+ * (HMAC-SHA256), so it is checked without looking anything up, and nobody can
+ * unsubscribe an address they weren't sent. Links signed with a key that
+ * changed would stop working. Until a secret is set there are no links at
+ * all, and every message only offers the list's address.
+ *
+ * List mail (the weekly list, urgent names) goes in bcc batches like any
+ * other mail. A message to a batch of daveners can't name any one of them, so
+ * it only offers to write to the list's address, for the admin to handle -
+ * in the body and in the List-Unsubscribe header. With mail.list.batch.size=1
+ * every davener gets a message of their own instead, with their link in the
+ * body and in a List-Unsubscribe header that mail clients can follow with one
+ * click (RFC 8058).
+ *
+ * The same link and token let a davener choose which categories they get, and
+ * whether they get urgent names - the page the link opens has both.
+ */
+@Service
+public class UnsubscribeService {
+
+	private final Logger log = LoggerFactory.getLogger(UnsubscribeService.class);
+
+	@Autowired
+	private DavenerRepository davenerRepository;
+
+	@Autowired
+	private CategoryRepository categoryRepository;
+
+	@Autowired
+	private WeeklyArtifactStore weeklyArtifactStore;
+
+	@Autowired
+	private DavenerSegments davenerSegments;
+
+	// Where a davener's link goes in the body of list mail (see EncodedEmail)
+	public static final String linkPlaceholder = "{{unsubscribe}}";
+
+	private static final int minSecretLength = 16;
+
+	@Value("${mail.unsubscribe.secret:}")
+	private String secret;
+
+	@Value("${mail.unsubscribe.url:http://localhost:8080/dlist/unsubscribe}")
+	private String unsubscribeUrl;
+
+	@Value("${spring.mail.username}")
+	private String listAddress;
+
+	// Null while there is no usable secret
+	private SecretKeySpec key;
+
+	@PostConstruct
+	private void initKey() {
+		if (secret.trim().length() < minSecretLength) {
+			log.error("mail.unsubscribe.secret is not set, or shorter than " + minSecretLength
+					+ " characters. Until it is, list mail only offers to write to " + listAddress
+					+ " to unsubscribe, and no unsubscribe link works.");
+			return;
+		}
+		key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+	}
+
+	// Whether there are signed links to give out
+	public boolean isEnabled() {
+		return key != null;
+	}
+
+	public String token(String email) {
+		if (key == null) {
+			throw new IllegalStateException("No unsubscribe secret - there are no unsubscribe links");
+		}
+		try {
+			// A Mac is not thread safe, and is cheap to make.
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(key);
+			byte[] signature = mac.doFinal(email.trim().toLowerCase().getBytes(StandardCharsets.UTF_8));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 is not available", e);
+		}
+	}
+
+	public boolean isValid(String email, String token) {
+		return key != null && email != null && token != null && MessageDigest.isEqual(token(email).getBytes(StandardCharsets.US_ASCII),
+				token.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public String link(String email) {
+		try {
+			return unsubscribeUrl + "?email=" + URLEncoder.encode(email, "UTF-8") + "&token=" + token(email);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// For messages that don't go to a single davener. These emails are read by a
+	// person - nothing acts on them automatically.
+	public String mailtoLink() {
+		return "mailto:" + listAddress + "?subject=unsubscribe";
+	}
+
+	// The davener's own link, which mail clients may follow with one click
+	public void addHeaders(MimeMessage message, String davener) throws MessagingException {
+		message.setHeader("List-Unsubscribe", "<" + link(davener) + ">");
+		message.setHeader("List-Unsubscribe-Post", "List-Unsubscribe=One-Click");
+	}
+
+	public void addMailtoHeader(MimeMessage message) throws MessagingException {
+		message.setHeader("List-Unsubscribe", "<" + mailtoLink() + ">");
+	}
+
+	// The page the davener's link opens: unsubscribe, or change their choices,
+	// which start as they are now.
+	public String unsubscribePage(String email, String token) throws PermissionException, ObjectNotFoundException {
+		if (!isValid(email, token)) {
+			throw new PermissionException("This link is not valid. ");
+		}
+		Davener davener = davenerRepository.findByEmail(email.trim());
+		if (davener == null) {
+			throw new ObjectNotFoundException("Davener with email " + email);
+		}
+
+		StringBuilder checkboxes = new StringBuilder();
+		for (Category category : categoryRepository.findAllOrderById()) {
+			String checked = davener.getCategories().contains(category.getId()) ? " checked" : "";
+			EmailScheme.getCategoryCheckboxTemplate().appendTo(checkboxes, String.valueOf(category.getId()), checked,
+					category.getEnglish(), category.getHebrew());
+		}
+		String escapedEmail = HtmlTemplate.escape(email);
+		String escapedToken = HtmlTemplate.escape(token);
+		String form = EmailScheme.getPreferencesFormTemplate().renderTrusted(escapedEmail, escapedToken,
+				checkboxes.toString(), davener.isWeeklyOnly() ? " checked" : "");
+		return EmailScheme.getUnsubscribePageTemplate().renderTrusted(escapedEmail, escapedEmail, escapedToken, form);
+	}
+
+	/*
+	 * Deactivates the davener, if the token is theirs, in a single update on the
+	 * (indexed) email - a burst of these after a weekly send stays cheap. Unlike
+	 * the admin's deactivation, no email is sent. Returns false if they were not
+	 * active to begin with.
+	 */
+	public boolean unsubscribe(String email, String token) throws PermissionException {
+		if (!isValid(email, token)) {
+			throw new PermissionException("This unsubscribe link is not valid. ");
+		}
+		boolean deactivated = davenerRepository.disactivateDaveners(Collections.singleton(email.trim())) > 0;
+		if (deactivated) {
+			davenerSegments.setActive(Collections.singleton(email), false);
+			weeklyArtifactStore.invalidateAll();
+		}
+		return deactivated;
+	}
+
+	// No categories means all of them.
+	public Davener updatePreferences(String email, String token, Set<Long> categories, boolean weeklyOnly)
+			throws PermissionException, ObjectNotFoundException {
+		if (!isValid(email, token)) {
+			throw new PermissionException("This link is not valid. ");
+		}
+		Davener davener = davenerRepository.findByEmail(email.trim());
+		if (davener == null) {
+			throw new ObjectNotFoundException("Davener with email " + email);
+		}
+		davener.setCategories(categories != null ? new HashSet<Long>(categories) : new HashSet<Long>());
+		davener.setWeeklyOnly(weeklyOnly);
+		davenerRepository.save(davener);
+		davenerSegments.update(davener);
+		weeklyArtifactStore.invalidateAll();
+		return davener;
+	}
+}
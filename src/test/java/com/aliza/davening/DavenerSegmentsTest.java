@@ -0,0 +1,89 @@
+package com.aliza.davening;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.aliza.davening.entities.Davener;
+import com.aliza.davening.repositories.DavenerRepository;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DavenerSegmentsTest {
+
+	@Mock
+	private DavenerRepository davenerRepository;
+
+	@InjectMocks
+	private DavenerSegments davenerSegments;
+
+	/*
+	 * 1 gets every category, 2 only category 10 and no urgent names, 3 categories
+	 * 10 and 20 but is not active, 4 only category 20.
+	 */
+	@Before
+	public void daveners() {
+		when(davenerRepository.getAllDavenerSettings()).thenReturn(Arrays.asList(
+				new Object[] { 1L, "all@example.com", true, false },
+				new Object[] { 2L, "weekly@example.com", true, true },
+				new Object[] { 3L, "inactive@example.com", false, false },
+				new Object[] { 4L, "twenty@example.com", true, false }));
+		when(davenerRepository.getAllDavenerCategories()).thenReturn(Arrays.asList(
+				new Object[] { 2L, 10L },
+				new Object[] { 3L, 10L },
+				new Object[] { 3L, 20L },
+				new Object[] { 4L, 20L }));
+	}
+
+	@Test
+	public void weeklyGoesToActiveDavenersOfTheCategory() {
+		assertEquals(Arrays.asList("all@example.com", "weekly@example.com"), davenerSegments.weeklyRecipients(10));
+		assertEquals(Arrays.asList("all@example.com", "twenty@example.com"), davenerSegments.weeklyRecipients(20));
+		assertEquals(Arrays.asList("all@example.com"), davenerSegments.weeklyRecipients(30));
+	}
+
+	@Test
+	public void urgentLeavesOutWeeklyOnly() {
+		assertEquals(Arrays.asList("all@example.com"), davenerSegments.urgentRecipients(10));
+		assertEquals(Arrays.asList("all@example.com", "twenty@example.com"), davenerSegments.urgentRecipients(20));
+	}
+
+	@Test
+	public void changedDavenerMovesSegments() {
+		Davener davener = new Davener(1, "Israel", "all@example.com", null, true, new HashSet<Long>(Arrays.asList(20L)),
+				true);
+
+		davenerSegments.update(davener);
+
+		assertEquals(Arrays.asList("weekly@example.com"), davenerSegments.weeklyRecipients(10));
+		assertEquals(Arrays.asList("all@example.com", "twenty@example.com"), davenerSegments.weeklyRecipients(20));
+		assertEquals(Arrays.asList("twenty@example.com"), davenerSegments.urgentRecipients(20));
+	}
+
+	@Test
+	public void activationIsByEmail() {
+		davenerSegments.setActive(Arrays.asList("Inactive@Example.com", "unknown@example.com"), true);
+		davenerSegments.setActive(Collections.singleton("twenty@example.com"), false);
+
+		assertEquals(Arrays.asList("all@example.com", "weekly@example.com", "inactive@example.com"),
+				davenerSegments.weeklyRecipients(10));
+		assertEquals(Arrays.asList("all@example.com", "inactive@example.com"), davenerSegments.weeklyRecipients(20));
+	}
+
+	@Test
+	public void removedDavenerGetsNothing() {
+		davenerSegments.remove(1);
+
+		assertEquals(Collections.emptyList(), davenerSegments.weeklyRecipients(30));
+		assertEquals(Arrays.asList("weekly@example.com"), davenerSegments.weeklyRecipients(10));
+	}
+}
@@ -0,0 +1,77 @@
+package com.aliza.davening;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davenfor;
+
+/*
+ * Compares building the name table of a 10k name category with String.format
+ * (the way createWeeklyHtml used to) and with the compiled EmailScheme
+ * templates. Runs only on request:
+ * mvn test -Dtest=HtmlTemplateBenchmark -Dbenchmark=true
+ */
+public class HtmlTemplateBenchmark {
+
+	private static final int names = 10000;
+	private static final int warmup = 20;
+	private static final int rounds = 50;
+
+	@Test
+	public void compareWithStringFormat() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		List<Davenfor> davenfors = new ArrayList<Davenfor>();
+		for (int i = 0; i < names; i++) {
+			Davenfor d = new Davenfor();
+			d.setId(i);
+			d.setNameEnglish("Moshe ben Sara " + i);
+			d.setNameHebrew("משה בן שרה");
+			davenfors.add(d);
+		}
+		Category category = new Category(1, "Refua", "רפואה", true, 30, 1);
+		Category nextCategory = new Category(2, "Shidduchim", "שידוכים", false, 180, 2);
+		Utilities utilities = new Utilities();
+
+		for (int i = 0; i < warmup; i++) {
+			withStringFormat(davenfors);
+			utilities.createWeeklyHtml(category, "Bereishit", davenfors, nextCategory);
+		}
+
+		long start = System.nanoTime();
+		String formatted = null;
+		for (int i = 0; i < rounds; i++) {
+			formatted = withStringFormat(davenfors);
+		}
+		long formatNanos = (System.nanoTime() - start) / rounds;
+
+		start = System.nanoTime();
+		String templated = null;
+		for (int i = 0; i < rounds; i++) {
+			templated = utilities.createWeeklyHtml(category, "Bereishit", davenfors, nextCategory);
+		}
+		long templateNanos = (System.nanoTime() - start) / rounds;
+
+		// Same rows either way (names here need no escaping)
+		assertEquals(true, templated.contains(formatted));
+
+		System.out.println(String.format("%d names - String.format: %.2f ms, compiled template: %.2f ms", names,
+				formatNanos / 1e6, templateNanos / 1e6));
+	}
+
+	// The name rows as createWeeklyHtml used to build them
+	private String withStringFormat(List<Davenfor> davenfors) {
+		StringBuilder stringBuilder = new StringBuilder();
+		for (Davenfor d : davenfors) {
+			stringBuilder
+					.append(String.format(EmailScheme.getHtmlNameRowInList(), d.getNameEnglish(), d.getNameHebrew()));
+		}
+		return stringBuilder.toString();
+	}
+}
@@ -0,0 +1,127 @@
+package com.aliza.davening;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JEditorPane;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davenfor;
+
+/*
+ * Compares painting the weekly list through a JEditorPane (the way it used to
+ * be done) with painting it through WeeklyImageRenderer, in time and in how
+ * the images look. Runs only on request:
+ * mvn test -Dtest=WeeklyImageRendererBenchmark -Dbenchmark=true
+ */
+public class WeeklyImageRendererBenchmark {
+
+	private static final int warmup = 20;
+	private static final int rounds = 100;
+
+	/*
+	 * The new image uses the packaged DejaVu font and the pane a serif one, so the
+	 * glyphs can't match pixel for pixel. The images are compared in blocks of
+	 * 16x16 pixels instead, by how much of each block is ink: on average a block
+	 * may differ by at most 4% of its pixels, which still catches a line that
+	 * moved, went missing or changed side.
+	 */
+	private static final int block = 16;
+	private static final double maxBlockDifference = 0.04;
+
+	@Test
+	public void compareRenderTimes() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		Category category = new Category(1, SchemeValues.banimName, "זרע של קיימא", true, 180, 1);
+		Category nextCategory = new Category(2, "Refua", "רפואה", false, 30, 2);
+		List<Davenfor> davenfors = new ArrayList<Davenfor>();
+		for (int i = 0; i < 30; i++) {
+			Davenfor d = new Davenfor();
+			d.setId(i);
+			d.setNameEnglish("Moshe ben Sara");
+			d.setNameHebrew("משה בן שרה");
+			d.setNameEnglishSpouse("Rivka bat Leah");
+			d.setNameHebrewSpouse("רבקה בת לאה");
+			davenfors.add(d);
+		}
+
+		String html = new Utilities().createWeeklyHtml(category, "Bereishit", davenfors, nextCategory);
+		WeeklyImageRenderer renderer = new WeeklyImageRenderer();
+
+		for (int i = 0; i < warmup; i++) {
+			paintWithEditorPane(html);
+			renderer.render(category, "Bereishit", davenfors, nextCategory, "davening.list@gmail.com");
+		}
+
+		long start = System.nanoTime();
+		BufferedImage legacy = null;
+		for (int i = 0; i < rounds; i++) {
+			legacy = paintWithEditorPane(html);
+		}
+		long editorPaneNanos = (System.nanoTime() - start) / rounds;
+
+		start = System.nanoTime();
+		BufferedImage java2d = null;
+		for (int i = 0; i < rounds; i++) {
+			java2d = renderer.render(category, "Bereishit", davenfors, nextCategory, "davening.list@gmail.com");
+		}
+		long java2dNanos = (System.nanoTime() - start) / rounds;
+
+		assertEquals(legacy.getWidth(), java2d.getWidth());
+		assertEquals(legacy.getHeight(), java2d.getHeight());
+		double difference = blockDifference(legacy, java2d);
+
+		System.out.println(String.format(
+				"JEditorPane: %.2f ms per render, Java2D: %.2f ms per render, images differ by %.2f%% per block",
+				editorPaneNanos / 1e6, java2dNanos / 1e6, difference * 100));
+		assertTrue(String.format("The images differ by %.2f%% per block, more than the %.0f%% allowed",
+				difference * 100, maxBlockDifference * 100), difference <= maxBlockDifference);
+	}
+
+	// The mean difference in ink coverage between the blocks of the two images
+	private static double blockDifference(BufferedImage expected, BufferedImage actual) {
+		double total = 0;
+		int blocks = 0;
+		for (int y = 0; y < expected.getHeight(); y += block) {
+			for (int x = 0; x < expected.getWidth(); x += block) {
+				total += Math.abs(ink(expected, x, y) - ink(actual, x, y));
+				blocks++;
+			}
+		}
+		return total / blocks;
+	}
+
+	// How dark the block is, from 0 (white) to 1 (black)
+	private static double ink(BufferedImage image, int left, int top) {
+		double ink = 0;
+		int pixels = 0;
+		for (int y = top; y < Math.min(top + block, image.getHeight()); y++) {
+			for (int x = left; x < Math.min(left + block, image.getWidth()); x++) {
+				int rgb = image.getRGB(x, y);
+				int gray = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+				ink += 1 - gray / 255.0;
+				pixels++;
+			}
+		}
+		return ink / pixels;
+	}
+
+	// The previous rendering path, painted into a plain image so it also runs
+	// headless.
+	private BufferedImage paintWithEditorPane(String html) {
+		BufferedImage image = new BufferedImage(EmailScheme.getImageWidth(), EmailScheme.getImageHeight(),
+				BufferedImage.TYPE_INT_RGB);
+		JEditorPane jep = new JEditorPane("text/html", html);
+		jep.setSize(EmailScheme.getImageWidth(), EmailScheme.getImageHeight());
+		jep.print(image.createGraphics());
+		return image;
+	}
+}
@@ -0,0 +1,145 @@
+package com.aliza.davening.repositories;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.aliza.davening.entities.OutboundBatch;
+import com.aliza.davening.entities.OutboundEmail;
+import com.aliza.davening.entities.OutboundStatus;
+
+/*
+ * The status changes of the outbox are single conditional updates, so that two
+ * workers (or two batches finishing at once) can't both win. Run against an
+ * in-memory database.
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class OutboundRepositoryTest {
+
+	@Autowired
+	private TestEntityManager entityManager;
+
+	@Autowired
+	private OutboundEmailRepository outboundEmailRepository;
+
+	@Autowired
+	private OutboundBatchRepository outboundBatchRepository;
+
+	@Test
+	public void batchIsClaimedOnce() {
+		OutboundBatch batch = batch(email().getId(), OutboundStatus.QUEUED);
+
+		assertEquals(1, outboundBatchRepository.claim(batch.getId(), LocalDateTime.now()));
+		assertEquals(0, outboundBatchRepository.claim(batch.getId(), LocalDateTime.now()));
+		assertEquals(OutboundStatus.SENDING, reload(batch).getStatus());
+	}
+
+	// A worker that never came back leaves its batch SENDING, until the sweep
+	@Test
+	public void batchLeftSendingIsRequeued() {
+		long emailId = email().getId();
+		OutboundBatch lost = batch(emailId, OutboundStatus.QUEUED);
+		OutboundBatch sending = batch(emailId, OutboundStatus.QUEUED);
+		LocalDateTime now = LocalDateTime.now();
+		outboundBatchRepository.claim(lost.getId(), now.minusHours(1));
+		outboundBatchRepository.claim(sending.getId(), now);
+
+		assertEquals(1, outboundBatchRepository.requeueClaimedBefore(now.minusMinutes(15)));
+		assertEquals(OutboundStatus.QUEUED, reload(lost).getStatus());
+		assertEquals(OutboundStatus.SENDING, reload(sending).getStatus());
+	}
+
+	@Test
+	public void emailIsMarkedSendingOnlyFromQueued() {
+		OutboundEmail email = email();
+
+		assertEquals(1, outboundEmailRepository.markSending(email.getId()));
+		assertEquals(OutboundStatus.SENDING, reload(email).getStatus());
+
+		outboundEmailRepository.setOutcome(email.getId(), OutboundStatus.SENT, LocalDateTime.now(), null);
+		assertEquals(0, outboundEmailRepository.markSending(email.getId()));
+		assertEquals(OutboundStatus.SENT, reload(email).getStatus());
+	}
+
+	@Test
+	public void emailIsSentOnlyOnceEveryBatchIs() {
+		OutboundEmail email = email();
+		batch(email.getId(), OutboundStatus.SENT);
+		OutboundBatch pending = batch(email.getId(), OutboundStatus.SENDING);
+
+		assertEquals(0, outboundEmailRepository.markSentIfDone(email.getId(), LocalDateTime.now()));
+		assertEquals(0, outboundEmailRepository.markFailedIfDone(email.getId(), "1 of 2 batches failed"));
+		assertEquals(OutboundStatus.QUEUED, reload(email).getStatus());
+
+		outboundBatchRepository.markSent(pending.getId(), LocalDateTime.now());
+		assertEquals(0, outboundEmailRepository.markFailedIfDone(email.getId(), "none failed"));
+		assertEquals(1, outboundEmailRepository.markSentIfDone(email.getId(), LocalDateTime.now()));
+		assertEquals(OutboundStatus.SENT, reload(email).getStatus());
+	}
+
+	@Test
+	public void emailFailsOnceEveryBatchIsDoneAndOneFailed() {
+		OutboundEmail email = email();
+		batch(email.getId(), OutboundStatus.FAILED);
+		OutboundBatch retrying = batch(email.getId(), OutboundStatus.QUEUED);
+
+		assertEquals(0, outboundEmailRepository.markFailedIfDone(email.getId(), "1 of 2 batches failed"));
+
+		outboundBatchRepository.markSent(retrying.getId(), LocalDateTime.now());
+		assertEquals(0, outboundEmailRepository.markSentIfDone(email.getId(), LocalDateTime.now()));
+		assertEquals(1, outboundEmailRepository.markFailedIfDone(email.getId(), "1 of 2 batches failed"));
+
+		OutboundEmail failed = reload(email);
+		assertEquals(OutboundStatus.FAILED, failed.getStatus());
+		assertEquals("1 of 2 batches failed", failed.getError());
+	}
+
+	@Test
+	public void onlyFailedBatchesAreRequeued() {
+		long emailId = email().getId();
+		OutboundBatch failed = batch(emailId, OutboundStatus.FAILED);
+		OutboundBatch sent = batch(emailId, OutboundStatus.SENT);
+
+		assertEquals(1, outboundBatchRepository.requeueFailed(Arrays.asList(failed.getId(), sent.getId())));
+		assertEquals(OutboundStatus.QUEUED, reload(failed).getStatus());
+		assertEquals(0, reload(failed).getAttempts());
+		assertEquals(OutboundStatus.SENT, reload(sent).getStatus());
+	}
+
+	private OutboundEmail email() {
+		OutboundEmail email = new OutboundEmail();
+		email.setSubject("Weekly davening list for Refua");
+		email.setMessage("<p>names</p>");
+		return entityManager.persistAndFlush(email);
+	}
+
+	private OutboundBatch batch(long emailId, OutboundStatus status) {
+		OutboundBatch batch = new OutboundBatch();
+		batch.setEmailId(emailId);
+		batch.setRecipients("davener@example.com");
+		batch.setRecipientCount(1);
+		batch.setStatus(status);
+		batch.setAttempts(status == OutboundStatus.QUEUED ? 0 : 1);
+		return entityManager.persistAndFlush(batch);
+	}
+
+	// The updates go around the persistence context, so read the row afresh.
+	private OutboundEmail reload(OutboundEmail email) {
+		entityManager.clear();
+		return entityManager.find(OutboundEmail.class, email.getId());
+	}
+
+	private OutboundBatch reload(OutboundBatch batch) {
+		entityManager.clear();
+		return entityManager.find(OutboundBatch.class, batch.getId());
+	}
+}
@@ -0,0 +1,215 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Session;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.aliza.davening.DavenerSegments;
+import com.aliza.davening.WeeklyArtifactStore;
+import com.aliza.davening.entities.BounceReport;
+import com.aliza.davening.repositories.DavenerRepository;
+
+/*
+ * Delivery reports are read from a maildir in a temporary folder, the way a
+ * mail server would leave them there.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BounceProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Mock
+	private DavenerRepository davenerRepository;
+
+	@Mock
+	private WeeklyArtifactStore weeklyArtifactStore;
+
+	@Mock
+	private DavenerSegments davenerSegments;
+
+	@Mock
+	private JavaMailSenderImpl javaMailSender;
+
+	@InjectMocks
+	private BounceProcessor bounceProcessor;
+
+	private Path newMail;
+	private Path readMail;
+
+	@Before
+	public void makeMaildir() throws Exception {
+		File maildir = folder.getRoot();
+		newMail = Files.createDirectory(maildir.toPath().resolve("new"));
+		readMail = maildir.toPath().resolve("cur");
+		ReflectionTestUtils.setField(bounceProcessor, "bouncesDirectory", maildir.getPath());
+	}
+
+	@Test
+	public void permanentFailureIsHardBounce() throws Exception {
+		session();
+		deliver("1", report(recipient("gone@example.com", "failed", "5.1.1")));
+		Set<String> hardBounces = Collections.singleton("gone@example.com");
+		when(davenerRepository.disactivateDaveners(hardBounces)).thenReturn(1);
+
+		BounceReport report = bounceProcessor.processBounces();
+
+		assertEquals(1, report.getMessages());
+		assertEquals(1, report.getHardBounces());
+		assertEquals(0, report.getSoftBounces());
+		assertEquals(1, report.getDeactivated());
+		verify(davenerSegments).setActive(hardBounces, false);
+		verify(weeklyArtifactStore).invalidateAll();
+		assertFalse(Files.exists(newMail.resolve("1")));
+		assertTrue(Files.exists(readMail.resolve("1:2,S")));
+	}
+
+	// A full mailbox or a greylisting server - the davener stays on the list.
+	@Test
+	public void passingFailureIsSoftBounce() throws Exception {
+		session();
+		deliver("1", report(recipient("full@example.com", "failed", "4.2.2")));
+		deliver("2", report(recipient("slow@example.com", "delayed", "4.4.1")));
+		deliver("3", report(recipient("unclear@example.com", "failed", null)));
+
+		BounceReport report = bounceProcessor.processBounces();
+
+		assertEquals(3, report.getMessages());
+		assertEquals(0, report.getHardBounces());
+		assertEquals(3, report.getSoftBounces());
+		verify(davenerRepository, never()).disactivateDaveners(anyCollection());
+	}
+
+	@Test
+	public void eachRecipientOfAReportIsCounted() throws Exception {
+		session();
+		deliver("1", report(recipient("gone@example.com", "failed", "5.1.1") + "\r\n"
+				+ recipient("full@example.com", "failed", "4.2.2") + "\r\n"
+				+ recipient("fine@example.com", "delivered", "2.0.0")));
+		Set<String> hardBounces = Collections.singleton("gone@example.com");
+		when(davenerRepository.disactivateDaveners(hardBounces)).thenReturn(0);
+
+		BounceReport report = bounceProcessor.processBounces();
+
+		assertEquals(1, report.getHardBounces());
+		assertEquals(1, report.getSoftBounces());
+		assertEquals(0, report.getDeactivated());
+		verify(davenerSegments, never()).setActive(anyCollection(), eq(false));
+	}
+
+	// Deactivated together, once for the pass
+	@Test
+	public void hardBouncesOfAPassAreDeactivatedTogether() throws Exception {
+		session();
+		deliver("1", report(recipient("gone@example.com", "failed", "5.1.1")));
+		deliver("2", report(recipient("closed@example.com", "failed", "5.2.1")));
+		deliver("3", report(recipient("gone@example.com", "failed", "5.1.1")));
+		Set<String> hardBounces = new HashSet<String>(Arrays.asList("gone@example.com", "closed@example.com"));
+		when(davenerRepository.disactivateDaveners(hardBounces)).thenReturn(2);
+
+		BounceReport report = bounceProcessor.processBounces();
+
+		assertEquals(3, report.getMessages());
+		assertEquals(2, report.getHardBounces());
+		assertEquals(2, report.getDeactivated());
+	}
+
+	@Test
+	public void otherMailIsOnlyMovedAside() throws Exception {
+		session();
+		deliver("1", "From: someone@example.com\r\nSubject: Thank you\r\n\r\nThanks for the list!\r\n");
+
+		BounceReport report = bounceProcessor.processBounces();
+
+		assertEquals(1, report.getMessages());
+		assertEquals(0, report.getHardBounces());
+		assertEquals(0, report.getSoftBounces());
+		assertTrue(Files.exists(readMail.resolve("1:2,S")));
+	}
+
+	// Read again on the next pass
+	@Test
+	public void reportsStayUnreadIfDeactivatingFails() throws Exception {
+		session();
+		deliver("1", report(recipient("gone@example.com", "failed", "5.1.1")));
+		when(davenerRepository.disactivateDaveners(anyCollection()))
+				.thenThrow(new IllegalStateException("No database"));
+
+		try {
+			bounceProcessor.processBounces();
+			throw new AssertionError("The failure was swallowed");
+		} catch (IllegalStateException e) {
+			assertTrue(Files.exists(newMail.resolve("1")));
+		}
+	}
+
+	@Test
+	public void noMaildirIsNoBounces() throws Exception {
+		ReflectionTestUtils.setField(bounceProcessor, "bouncesDirectory", folder.getRoot().getPath() + "/none");
+
+		assertEquals(0, bounceProcessor.processBounces().getMessages());
+	}
+
+	private void session() {
+		when(javaMailSender.getSession()).thenReturn(Session.getInstance(new Properties()));
+	}
+
+	private void deliver(String name, String message) throws Exception {
+		Files.write(newMail.resolve(name), message.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	// A delivery status block for one recipient. No status leaves the line out.
+	private static String recipient(String address, String action, String status) {
+		return "Final-Recipient: rfc822; " + address + "\r\nAction: " + action + "\r\n"
+				+ (status != null ? "Status: " + status + "\r\n" : "");
+	}
+
+	// A delivery report (RFC 3464), as a mail server sends it back
+	private static String report(String recipients) {
+		return "From: MAILER-DAEMON@example.com\r\n"
+				+ "Subject: Undelivered Mail Returned to Sender\r\n"
+				+ "MIME-Version: 1.0\r\n"
+				+ "Content-Type: multipart/report; report-type=delivery-status; boundary=\"b1\"\r\n"
+				+ "\r\n"
+				+ "--b1\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "\r\n"
+				+ "The mail could not be delivered.\r\n"
+				+ "--b1\r\n"
+				+ "Content-Type: message/delivery-status\r\n"
+				+ "\r\n"
+				+ "Reporting-MTA: dns; mail.example.com\r\n"
+				+ "\r\n"
+				+ recipients
+				+ "\r\n"
+				+ "--b1--\r\n";
+	}
+}
@@ -0,0 +1,122 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+/*
+ * Compares building a batch's message from scratch (encoding the attachment
+ * every time, as the dispatcher used to) with reading it from the email's
+ * shared encoded bytes. Both are written out the way the SMTP transport would
+ * write them. Runs only on request:
+ * mvn test -Dtest=EncodedEmailBenchmark -Dbenchmark=true
+ */
+public class EncodedEmailBenchmark {
+
+	private static final int warmup = 50;
+	private static final int batches = 200;
+
+	// About the size of a large weekly list image
+	private static final int attachmentSize = 400 * 1024;
+
+	private static final String[] bcc = new String[50];
+
+	private final Session session = Session.getInstance(new Properties());
+
+	@Test
+	public void compareWithBuildingEachMessage() throws Exception {
+		Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+		byte[] attachment = new byte[attachmentSize];
+		new Random(1).nextBytes(attachment);
+		for (int i = 0; i < bcc.length; i++) {
+			bcc[i] = "davener" + i + "@example.com";
+		}
+
+		EncodedEmail encoded = EncodedEmail.encode(build(attachment, false), "admin@example.com", "example.com",
+				false);
+
+		for (int i = 0; i < warmup; i++) {
+			write(build(attachment, true));
+			write(encoded.forRecipients(session, true, bcc));
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long builtSize = 0;
+		for (int i = 0; i < batches; i++) {
+			builtSize = write(build(attachment, true));
+		}
+		long builtNanos = (System.nanoTime() - start) / batches;
+		long builtBytes = (threads.getThreadAllocatedBytes(thread) - allocated) / batches;
+
+		allocated = threads.getThreadAllocatedBytes(thread);
+		start = System.nanoTime();
+		long sharedSize = 0;
+		for (int i = 0; i < batches; i++) {
+			sharedSize = write(encoded.forRecipients(session, true, bcc));
+		}
+		long sharedNanos = (System.nanoTime() - start) / batches;
+		long sharedBytes = (threads.getThreadAllocatedBytes(thread) - allocated) / batches;
+
+		// Same message either way, give or take the length of the boundaries and ids
+		assertEquals(builtSize, sharedSize, 200);
+
+		System.out.println(String.format(
+				"Per message - built each time: %.2f ms, %d KB allocated; shared encoding: %.2f ms, %d KB allocated",
+				builtNanos / 1e6, builtBytes / 1024, sharedNanos / 1e6, sharedBytes / 1024));
+	}
+
+	// The message as the dispatcher used to build it for every batch
+	private MimeMessage build(byte[] attachment, boolean withRecipients) throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		MimeMessageHelper helper = new MimeMessageHelper(message, true);
+		helper.setSubject("Weekly davening list for Bereishit");
+		helper.setText("To unsubscribe from the weekly davening list, click <a href='http://www.google.com'>HERE</a>",
+				true);
+		if (withRecipients) {
+			helper.setTo("admin@example.com");
+			helper.setBcc(bcc);
+		}
+		helper.addAttachment("Davening List Parashat Bereishit.png", new ByteArrayResource(attachment));
+		message.saveChanges();
+		return message;
+	}
+
+	// Writes the message out as SMTPTransport does, counting the bytes.
+	private long write(MimeMessage message) throws Exception {
+		CountingStream out = new CountingStream();
+		message.writeTo(out, new String[] { "Bcc", "Content-Length" });
+		return out.count;
+	}
+
+	private static class CountingStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package com.aliza.davening.services;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A small SMTP server on the loopback interface, for measuring and testing the
+ * email code without a real mail server. It accepts any sender and recipient
+ * (no AUTH or STARTTLS is offered, so clients skip them) and keeps a record of
+ * each message instead of delivering it.
+ *
+ * Faults can be switched on while it runs, each as a share of messages: a delay
+ * before accepting the data, a 451 (try again later) after the data, a 550 to
+ * MAIL FROM, or the connection dropped after the data without a reply. The
+ * faults are drawn from a seeded Random, so a run can be repeated.
+ */
+public class FakeSmtpServer implements Closeable {
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private final Random random;
+
+	private volatile long latencyMillis;
+	private volatile double transientFailureRate;
+	private volatile double permanentFailureRate;
+	private volatile double dropRate;
+
+	private final List<Received> received = Collections.synchronizedList(new ArrayList<Received>());
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicInteger connectionsOpened = new AtomicInteger();
+	private final AtomicInteger transientFailures = new AtomicInteger();
+	private final AtomicInteger permanentFailures = new AtomicInteger();
+	private final AtomicInteger drops = new AtomicInteger();
+
+	public FakeSmtpServer(long seed) throws IOException {
+		random = new Random(seed);
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		connections.execute(this::accept);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void setTransientFailureRate(double transientFailureRate) {
+		this.transientFailureRate = transientFailureRate;
+	}
+
+	public void setPermanentFailureRate(double permanentFailureRate) {
+		this.permanentFailureRate = permanentFailureRate;
+	}
+
+	public void setDropRate(double dropRate) {
+		this.dropRate = dropRate;
+	}
+
+	// Clears the faults and everything counted so far.
+	public void reset() {
+		latencyMillis = 0;
+		transientFailureRate = 0;
+		permanentFailureRate = 0;
+		dropRate = 0;
+		received.clear();
+		bytesIn.set(0);
+		bytesOut.set(0);
+		connectionsOpened.set(0);
+		transientFailures.set(0);
+		permanentFailures.set(0);
+		drops.set(0);
+	}
+
+	public List<Received> getReceived() {
+		synchronized (received) {
+			return new ArrayList<Received>(received);
+		}
+	}
+
+	// Both directions, commands and replies included
+	public long getBytesOnTheWire() {
+		return bytesIn.get() + bytesOut.get();
+	}
+
+	public int getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	public int getTransientFailures() {
+		return transientFailures.get();
+	}
+
+	public int getPermanentFailures() {
+		return permanentFailures.get();
+	}
+
+	public int getDrops() {
+		return drops.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		connections.shutdownNow();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		connectionsOpened.incrementAndGet();
+		try (Socket open = socket) {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(new CountingInput(open.getInputStream()), StandardCharsets.ISO_8859_1));
+			Writer out = new OutputStreamWriter(new CountingOutput(open.getOutputStream()),
+					StandardCharsets.ISO_8859_1);
+
+			reply(out, "220 localhost fake ESMTP");
+			String from = null;
+			List<String> recipients = new ArrayList<String>();
+			long started = 0;
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+				switch (command) {
+				case "EHLO":
+					reply(out, "250-localhost\r\n250-8BITMIME\r\n250 OK");
+					break;
+				case "HELO":
+					reply(out, "250 localhost");
+					break;
+				case "MAIL":
+					started = System.nanoTime();
+					recipients.clear();
+					if (roll(permanentFailureRate)) {
+						permanentFailures.incrementAndGet();
+						from = null;
+						reply(out, "550 5.7.1 Sender refused");
+					} else {
+						from = line.substring(line.indexOf(':') + 1).trim();
+						reply(out, "250 OK");
+					}
+					break;
+				case "RCPT":
+					recipients.add(line.substring(line.indexOf(':') + 1).trim());
+					reply(out, "250 OK");
+					break;
+				case "DATA":
+					reply(out, "354 End data with <CR><LF>.<CR><LF>");
+					int size = readData(in);
+					if (roll(dropRate)) {
+						drops.incrementAndGet();
+						return;
+					}
+					if (latencyMillis > 0) {
+						Thread.sleep(latencyMillis);
+					}
+					if (roll(transientFailureRate)) {
+						transientFailures.incrementAndGet();
+						reply(out, "451 4.3.0 Try again later");
+						break;
+					}
+					received.add(new Received(from, new ArrayList<String>(recipients), size,
+							System.nanoTime() - started));
+					reply(out, "250 OK");
+					break;
+				case "RSET":
+					from = null;
+					recipients.clear();
+					reply(out, "250 OK");
+					break;
+				case "NOOP":
+					reply(out, "250 OK");
+					break;
+				case "QUIT":
+					reply(out, "221 Bye");
+					return;
+				default:
+					reply(out, "502 Command not implemented");
+				}
+			}
+		} catch (SocketException e) {
+			// The client went away
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Reads up to the lone dot, returning the size of the message in characters.
+	private int readData(BufferedReader in) throws IOException {
+		int size = 0;
+		String line;
+		while ((line = in.readLine()) != null && !line.equals(".")) {
+			size += line.length() + 2;
+		}
+		return size;
+	}
+
+	private void reply(Writer out, String reply) throws IOException {
+		out.write(reply + "\r\n");
+		out.flush();
+	}
+
+	private boolean roll(double rate) {
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	public static class Received {
+
+		private final String from;
+		private final List<String> recipients;
+		private final int size;
+
+		// From MAIL FROM to the final reply, as the client waits for it
+		private final long nanos;
+
+		private Received(String from, List<String> recipients, int size, long nanos) {
+			this.from = from;
+			this.recipients = recipients;
+			this.size = size;
+			this.nanos = nanos;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public List<String> getRecipients() {
+			return recipients;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	private class CountingInput extends FilterInputStream {
+
+		private CountingInput(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				bytesIn.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				bytesIn.addAndGet(read);
+			}
+			return read;
+		}
+	}
+
+	private class CountingOutput extends FilterOutputStream {
+
+		private CountingOutput(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesOut.incrementAndGet();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesOut.addAndGet(len);
+		}
+	}
+}
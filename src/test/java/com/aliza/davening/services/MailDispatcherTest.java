@@ -0,0 +1,351 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.aliza.davening.entities.DeadLetter;
+import com.aliza.davening.entities.MailPriority;
+import com.aliza.davening.entities.OutboundBatch;
+import com.aliza.davening.entities.OutboundEmail;
+import com.aliza.davening.entities.OutboundStatus;
+import com.aliza.davening.repositories.DeadLetterRepository;
+import com.aliza.davening.repositories.OutboundBatchRepository;
+import com.aliza.davening.repositories.OutboundEmailRepository;
+import com.aliza.davening.services.MailSpool.SpoolEntry;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+
+/*
+ * What happens to a batch after it is sent or fails: retries, dead letters,
+ * the email's status, and replaying it from the spool. The repositories and
+ * the SMTP connection are mocks.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MailDispatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Mock
+	private JavaMailSenderImpl javaMailSender;
+
+	@Mock
+	private OutboundEmailRepository outboundEmailRepository;
+
+	@Mock
+	private OutboundBatchRepository outboundBatchRepository;
+
+	@Mock
+	private SmtpTransportPool transportPool;
+
+	@Mock
+	private DeadLetterRepository deadLetterRepository;
+
+	@Mock
+	private MailRateLimiter rateLimiter;
+
+	@InjectMocks
+	private MailDispatcher mailDispatcher;
+
+	private static final long retryBaseMillis = 60000;
+
+	private void configure() {
+		ReflectionTestUtils.setField(mailDispatcher, "maxAttempts", 5);
+		ReflectionTestUtils.setField(mailDispatcher, "retryBaseMillis", retryBaseMillis);
+		ReflectionTestUtils.setField(mailDispatcher, "retryMaxMillis", 3600000L);
+	}
+
+	@Test
+	public void passingFailureIsRetriedLater() {
+		configure();
+		OutboundBatch batch = batch(0, OutboundStatus.SENDING);
+		LocalDateTime before = LocalDateTime.now();
+
+		failed(batch, new MessagingException("Read timed out", new SocketTimeoutException()));
+
+		ArgumentCaptor<LocalDateTime> nextAttempt = ArgumentCaptor.forClass(LocalDateTime.class);
+		verify(outboundBatchRepository).scheduleRetry(eq(batch.getId()), anyString(), nextAttempt.capture());
+		// The first retry waits half to all of the base delay
+		assertFalse(nextAttempt.getValue().isBefore(before.plusNanos(retryBaseMillis / 2 * 1000000)));
+		assertFalse(nextAttempt.getValue().isAfter(LocalDateTime.now().plusNanos(retryBaseMillis * 1000000)));
+		verify(outboundBatchRepository, never()).markFailed(anyLong(), anyString());
+		verify(deadLetterRepository, never()).save(any(DeadLetter.class));
+	}
+
+	@Test
+	public void lastAttemptBecomesDeadLetter() {
+		configure();
+		OutboundBatch batch = batch(4, OutboundStatus.SENDING);
+		OutboundEmail email = new OutboundEmail();
+		email.setSubject("Weekly davening list for Refua");
+		when(outboundEmailRepository.findById(batch.getEmailId())).thenReturn(Optional.of(email));
+
+		failed(batch, new MessagingException("Read timed out", new SocketTimeoutException()));
+
+		verify(outboundBatchRepository, never()).scheduleRetry(anyLong(), anyString(), any(LocalDateTime.class));
+		verify(outboundBatchRepository).markFailed(eq(batch.getId()), anyString());
+		DeadLetter deadLetter = savedDeadLetter();
+		assertEquals(batch.getId(), deadLetter.getBatchId());
+		assertEquals(5, deadLetter.getAttempts());
+		assertEquals("Weekly davening list for Refua", deadLetter.getSubject());
+		assertEquals(batch.getRecipients(), deadLetter.getRecipients());
+	}
+
+	@Test
+	public void refusedAddressIsNotRetried() throws Exception {
+		configure();
+		OutboundBatch batch = batch(0, OutboundStatus.SENDING);
+		when(outboundEmailRepository.findById(batch.getEmailId())).thenReturn(Optional.empty());
+
+		failed(batch, new SMTPAddressFailedException(new InternetAddress("gone@example.com"), "RCPT TO", 550,
+				"No such user"));
+
+		verify(outboundBatchRepository, never()).scheduleRetry(anyLong(), anyString(), any(LocalDateTime.class));
+		verify(outboundBatchRepository).markFailed(eq(batch.getId()), anyString());
+		assertEquals(1, savedDeadLetter().getAttempts());
+	}
+
+	// Claimed, and then the database goes away for a moment
+	@Test
+	public void claimedBatchIsRetriedIfSendingBreaksOff() throws Exception {
+		configure();
+		when(outboundBatchRepository.findById(7L)).thenReturn(Optional.of(batch(0, OutboundStatus.SENDING)));
+		when(outboundEmailRepository.markSending(3L)).thenThrow(new IllegalStateException("No database"));
+
+		sendClaimed(7L);
+
+		verify(outboundBatchRepository).scheduleRetry(eq(7L), anyString(), any(LocalDateTime.class));
+		verify(transportPool, never()).send(any(MimeMessage.class));
+	}
+
+	@Test
+	public void claimedBatchThatCannotBeReadIsPutBack() {
+		when(outboundBatchRepository.findById(7L)).thenThrow(new IllegalStateException("No database"));
+
+		sendClaimed(7L);
+
+		verify(outboundBatchRepository).defer(7L, null);
+	}
+
+	// Sent to the addresses the server took, with mail.smtp.sendpartial
+	@Test
+	public void partlySentBatchIsSplit() throws Exception {
+		configure();
+		OutboundBatch batch = batch(0, OutboundStatus.SENDING);
+		batch.setRecipients("davener@example.com,Gone@example.com,full@example.com");
+		batch.setRecipientCount(3);
+		long[] nextId = { 8 };
+		when(outboundBatchRepository.save(any(OutboundBatch.class))).thenAnswer(invocation -> {
+			OutboundBatch saved = invocation.getArgument(0);
+			if (saved.getId() == 0) {
+				saved.setId(nextId[0]++);
+			}
+			return saved;
+		});
+		when(outboundEmailRepository.findById(3L)).thenReturn(Optional.empty());
+		SendFailedException e = new SendFailedException("Invalid Addresses",
+				new AddressException("550 No such user"), InternetAddress.parse("davener@example.com"),
+				InternetAddress.parse("full@example.com"), InternetAddress.parse("gone@example.com"));
+
+		ReflectionTestUtils.invokeMethod(mailDispatcher, "failedOrPartlySent", batch, e);
+
+		assertEquals("davener@example.com", batch.getRecipients());
+		verify(outboundBatchRepository).markSent(eq(7L), any(LocalDateTime.class));
+		verify(outboundBatchRepository).markFailed(eq(8L), anyString());
+		assertEquals("gone@example.com", savedDeadLetter().getRecipients());
+		verify(outboundBatchRepository).scheduleRetry(eq(9L), anyString(), any(LocalDateTime.class));
+		verify(outboundBatchRepository, never()).markFailed(eq(7L), anyString());
+	}
+
+	@Test
+	public void emailWaitsForItsLastBatch() {
+		when(outboundBatchRepository.findStatusesByEmailId(3L))
+				.thenReturn(Arrays.asList(OutboundStatus.SENT, OutboundStatus.FAILED, OutboundStatus.QUEUED));
+
+		updateEmailStatus(3L);
+
+		verify(outboundEmailRepository, never()).markSentIfDone(anyLong(), any(LocalDateTime.class));
+		verify(outboundEmailRepository, never()).markFailedIfDone(anyLong(), anyString());
+	}
+
+	@Test
+	public void emailIsSentWhenEveryBatchIs() {
+		when(outboundBatchRepository.findStatusesByEmailId(3L))
+				.thenReturn(Arrays.asList(OutboundStatus.SENT, OutboundStatus.SENT));
+
+		updateEmailStatus(3L);
+
+		verify(outboundEmailRepository).markSentIfDone(eq(3L), any(LocalDateTime.class));
+		verify(outboundEmailRepository, never()).markFailedIfDone(anyLong(), anyString());
+	}
+
+	@Test
+	public void emailFailsWhenABatchFailed() {
+		when(outboundBatchRepository.findStatusesByEmailId(3L))
+				.thenReturn(Arrays.asList(OutboundStatus.SENT, OutboundStatus.FAILED));
+
+		updateEmailStatus(3L);
+
+		verify(outboundEmailRepository).markFailedIfDone(3L, "1 of 2 batches failed");
+		verify(outboundEmailRepository, never()).markSentIfDone(anyLong(), any(LocalDateTime.class));
+	}
+
+	@Test
+	public void spooledMessageIsReplayed() throws Exception {
+		MailSpool spool = spool();
+		SpoolEntry entry = spooled(spool);
+		when(outboundBatchRepository.findById(entry.batchId))
+				.thenReturn(Optional.of(batch(1, OutboundStatus.SPOOLED)));
+		when(outboundBatchRepository.findStatusesByEmailId(3L)).thenReturn(Arrays.asList(OutboundStatus.SENT));
+
+		replay(entry);
+
+		ArgumentCaptor<MimeMessage> sent = ArgumentCaptor.forClass(MimeMessage.class);
+		verify(transportPool).send(sent.capture());
+		assertEquals("Urgent davening request", sent.getValue().getSubject());
+		assertEquals("davener@example.com", sent.getValue().getRecipients(Message.RecipientType.BCC)[0].toString());
+		verify(outboundBatchRepository).markSent(eq(entry.batchId), any(LocalDateTime.class));
+		verify(outboundEmailRepository).markSentIfDone(eq(3L), any(LocalDateTime.class));
+		assertFalse(Files.exists(entry.file));
+	}
+
+	@Test
+	public void spooledMessageStaysWhileServerIsOutOfReach() throws Exception {
+		MailSpool spool = spool();
+		SpoolEntry entry = spooled(spool);
+		when(outboundBatchRepository.findById(entry.batchId))
+				.thenReturn(Optional.of(batch(1, OutboundStatus.SPOOLED)));
+		doThrow(new MessagingException("Could not connect", new ConnectException("Connection refused")))
+				.when(transportPool).send(any(MimeMessage.class));
+
+		replay(entry);
+
+		assertTrue(Files.exists(entry.file));
+		assertTrue((Boolean) ReflectionTestUtils.getField(mailDispatcher, "replayHalted"));
+		verify(outboundBatchRepository, never()).markSent(anyLong(), any(LocalDateTime.class));
+		verify(outboundBatchRepository, never()).markFailed(anyLong(), anyString());
+	}
+
+	@Test
+	public void spooledMessageRefusedLeavesTheSpool() throws Exception {
+		configure();
+		MailSpool spool = spool();
+		SpoolEntry entry = spooled(spool);
+		when(outboundBatchRepository.findById(entry.batchId))
+				.thenReturn(Optional.of(batch(1, OutboundStatus.SPOOLED)));
+		when(outboundEmailRepository.findById(3L)).thenReturn(Optional.empty());
+		when(outboundBatchRepository.findStatusesByEmailId(3L)).thenReturn(Arrays.asList(OutboundStatus.FAILED));
+		doThrow(new SMTPAddressFailedException(new InternetAddress("davener@example.com"), "RCPT TO", 550,
+				"No such user")).when(transportPool).send(any(MimeMessage.class));
+
+		replay(entry);
+
+		assertFalse(Files.exists(entry.file));
+		verify(outboundBatchRepository).markFailed(eq(entry.batchId), anyString());
+		verify(deadLetterRepository).save(any(DeadLetter.class));
+		verify(outboundEmailRepository).markFailedIfDone(3L, "1 of 1 batches failed");
+	}
+
+	@Test
+	public void spooledMessageOfAnotherStatusIsDiscarded() throws Exception {
+		MailSpool spool = spool();
+		SpoolEntry entry = spooled(spool);
+		when(outboundBatchRepository.findById(entry.batchId)).thenReturn(Optional.of(batch(1, OutboundStatus.SENT)));
+
+		replay(entry);
+
+		assertFalse(Files.exists(entry.file));
+		verify(transportPool, never()).send(any(MimeMessage.class));
+	}
+
+	private OutboundBatch batch(int attempts, OutboundStatus status) {
+		OutboundBatch batch = new OutboundBatch();
+		batch.setId(7);
+		batch.setEmailId(3);
+		batch.setRecipients("davener@example.com");
+		batch.setRecipientCount(1);
+		batch.setPriority(MailPriority.URGENT);
+		batch.setStatus(status);
+		batch.setAttempts(attempts);
+		return batch;
+	}
+
+	private MailSpool spool() throws Exception {
+		MailSpool spool = new MailSpool();
+		ReflectionTestUtils.setField(spool, "directoryName", folder.getRoot().getPath());
+		ReflectionTestUtils.invokeMethod(spool, "openDirectory");
+		ReflectionTestUtils.setField(mailDispatcher, "mailSpool", spool);
+		// Not every replay gets as far as reading the message
+		lenient().when(javaMailSender.getSession()).thenReturn(Session.getInstance(new Properties()));
+		return spool;
+	}
+
+	// A message for batch 7, as the dispatcher spools it when the server is down
+	private SpoolEntry spooled(MailSpool spool) throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setSubject("Urgent davening request");
+		message.setRecipients(Message.RecipientType.BCC, "davener@example.com");
+		message.setText("Please daven for Moshe ben Sara");
+		message.saveChanges();
+		spool.write(message, MailPriority.URGENT, 7);
+		return spool.entries().get(0);
+	}
+
+	private void failed(OutboundBatch batch, Exception e) {
+		ReflectionTestUtils.invokeMethod(mailDispatcher, "failed", batch, e);
+	}
+
+	private void sendClaimed(long batchId) {
+		ReflectionTestUtils.invokeMethod(mailDispatcher, "sendClaimed", batchId);
+	}
+
+	private void updateEmailStatus(long emailId) {
+		ReflectionTestUtils.invokeMethod(mailDispatcher, "updateEmailStatus", emailId);
+	}
+
+	private void replay(SpoolEntry entry) {
+		ReflectionTestUtils.invokeMethod(mailDispatcher, "replay", entry);
+	}
+
+	private DeadLetter savedDeadLetter() {
+		ArgumentCaptor<DeadLetter> deadLetter = ArgumentCaptor.forClass(DeadLetter.class);
+		verify(deadLetterRepository).save(deadLetter.capture());
+		return deadLetter.getValue();
+	}
+}
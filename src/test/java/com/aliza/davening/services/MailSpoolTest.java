@@ -0,0 +1,103 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.aliza.davening.entities.MailPriority;
+import com.aliza.davening.services.MailSpool.SpoolEntry;
+
+public class MailSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Session session = Session.getInstance(new Properties());
+
+	private MailSpool mailSpool;
+
+	@Before
+	public void openSpool() {
+		mailSpool = open();
+	}
+
+	@Test
+	public void messageIsReadBackAsItWasSpooled() throws Exception {
+		mailSpool.write(message("Weekly davening list for Refua", "davener@example.com"), MailPriority.BULK, 12);
+
+		List<SpoolEntry> entries = mailSpool.entries();
+		assertEquals(1, entries.size());
+		assertEquals(12, entries.get(0).batchId);
+		assertEquals(MailPriority.BULK, entries.get(0).lane);
+
+		MimeMessage read = mailSpool.read(entries.get(0), session);
+		assertEquals("Weekly davening list for Refua", read.getSubject());
+		assertEquals("davener@example.com", read.getRecipients(Message.RecipientType.BCC)[0].toString());
+		assertEquals(1, mailSpool.getStatus().getDepth());
+	}
+
+	@Test
+	public void urgentMessagesComeFirst() throws Exception {
+		mailSpool.write(message("Weekly davening list for Refua", "a@example.com"), MailPriority.BULK, 1);
+		mailSpool.write(message("Urgent davening request", "b@example.com"), MailPriority.URGENT, 2);
+		mailSpool.write(message("Weekly davening list for Refua", "c@example.com"), MailPriority.BULK, 3);
+
+		List<SpoolEntry> entries = mailSpool.entries();
+		assertEquals(2, entries.get(0).batchId);
+		assertEquals(1, entries.get(1).batchId);
+		assertEquals(3, entries.get(2).batchId);
+	}
+
+	@Test
+	public void sentAndDiscardedMessagesLeave() throws Exception {
+		mailSpool.write(message("Urgent davening request", "a@example.com"), MailPriority.URGENT, 1);
+		mailSpool.write(message("Urgent davening request", "b@example.com"), MailPriority.URGENT, 2);
+		List<SpoolEntry> entries = mailSpool.entries();
+
+		mailSpool.sent(entries.get(0));
+		mailSpool.discard(entries.get(1));
+
+		assertTrue(mailSpool.entries().isEmpty());
+		assertEquals(1, mailSpool.getStatus().getReplayed());
+	}
+
+	// An unfinished write is not a message, and is cleared away on startup.
+	@Test
+	public void unfinishedWritesAreIgnored() throws Exception {
+		File leftover = folder.newFile("0-0000000000001-000001-5.tmp");
+
+		assertTrue(mailSpool.entries().isEmpty());
+		open();
+		assertFalse(leftover.exists());
+	}
+
+	private MailSpool open() {
+		MailSpool spool = new MailSpool();
+		ReflectionTestUtils.setField(spool, "directoryName", folder.getRoot().getPath());
+		ReflectionTestUtils.invokeMethod(spool, "openDirectory");
+		return spool;
+	}
+
+	private MimeMessage message(String subject, String bcc) throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		message.setSubject(subject);
+		message.setRecipients(Message.RecipientType.BCC, bcc);
+		message.setText("Please daven for Moshe ben Sara");
+		message.saveChanges();
+		return message;
+	}
+}
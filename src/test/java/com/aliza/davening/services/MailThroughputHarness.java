@@ -0,0 +1,272 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.fail;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.aliza.davening.DavenerSegments;
+import com.aliza.davening.MaintainList;
+import com.aliza.davening.SchemeValues;
+import com.aliza.davening.entities.Category;
+import com.aliza.davening.entities.Davener;
+import com.aliza.davening.entities.Davenfor;
+import com.aliza.davening.entities.OutboundBatch;
+import com.aliza.davening.entities.OutboundStatus;
+import com.aliza.davening.entities.Parasha;
+import com.aliza.davening.entities.Weekly;
+import com.aliza.davening.entities.WeeklyFormat;
+import com.aliza.davening.repositories.CategoryRepository;
+import com.aliza.davening.repositories.DavenerRepository;
+import com.aliza.davening.repositories.DavenforRepository;
+import com.aliza.davening.repositories.DeadLetterRepository;
+import com.aliza.davening.repositories.OutboundBatchRepository;
+import com.aliza.davening.repositories.ParashaRepository;
+
+/*
+ * Drives the real email code - the weekly list, an urgent name and the nightly
+ * expiry run - against FakeSmtpServer, with an in-memory database (the harness
+ * profile), and prints messages per second, send latency and bytes on the wire
+ * for each. Needs no network or database. Runs only on request:
+ * mvn test -Dtest=MailThroughputHarness -Dbenchmark=true
+ *
+ * -Dharness.daveners (default 1000), -Dharness.names (default 50, a fifth as
+ * many submitters) and -Dharness.format (IMAGE, PDF or INLINE) change the run.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@ActiveProfiles("harness")
+@IfProfileValue(name = "benchmark", value = "true")
+public class MailThroughputHarness {
+
+	private static final int daveners = Integer.getInteger("harness.daveners", 1000);
+	private static final int names = Integer.getInteger("harness.names", 50);
+	private static final WeeklyFormat format = WeeklyFormat.valueOf(System.getProperty("harness.format", "IMAGE"));
+
+	private static final long timeoutMillis = 10 * 60 * 1000;
+
+	private static FakeSmtpServer server;
+	private static boolean seeded;
+	private static long categoryId;
+
+	@Autowired
+	private JavaMailSenderImpl javaMailSender;
+
+	@Autowired
+	private EmailSender emailSender;
+
+	@Autowired
+	private MaintainList maintainList;
+
+	@Autowired
+	private DavenerSegments davenerSegments;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private CategoryRepository categoryRepository;
+
+	@Autowired
+	private DavenerRepository davenerRepository;
+
+	@Autowired
+	private DavenforRepository davenforRepository;
+
+	@Autowired
+	private ParashaRepository parashaRepository;
+
+	@Autowired
+	private OutboundBatchRepository outboundBatchRepository;
+
+	@Autowired
+	private DeadLetterRepository deadLetterRepository;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = new FakeSmtpServer(1);
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		server.close();
+	}
+
+	@Before
+	public void prepare() {
+		server.reset();
+		if (seeded) {
+			return;
+		}
+
+		/*
+		 * The application's mail settings are for Gmail over SSL - here it is plain
+		 * SMTP to the fake server. Setting the properties drops the session built from
+		 * the old ones.
+		 */
+		Properties properties = new Properties();
+		for (String key : javaMailSender.getJavaMailProperties().stringPropertyNames()) {
+			if (!key.startsWith("mail.smtp.socketFactory")) {
+				properties.setProperty(key, javaMailSender.getJavaMailProperties().getProperty(key));
+			}
+		}
+		properties.setProperty("mail.smtp.starttls.enable", "false");
+		javaMailSender.setJavaMailProperties(properties);
+		javaMailSender.setHost("127.0.0.1");
+		javaMailSender.setPort(server.getPort());
+
+		seed();
+		seeded = true;
+	}
+
+	@Test
+	public void weeklyList() throws Exception {
+		run("weekly list " + format, () -> emailSender.sendOutWeekly(weekly()));
+	}
+
+	@Test
+	public void urgentEmail() throws Exception {
+		run("urgent email", () -> emailSender.sendUrgentEmail(davenforRepository.findAll().get(0)));
+	}
+
+	@Test
+	public void expiryRun() throws Exception {
+		run("expiry run", () -> maintainList.offerExtensionOrDelete());
+	}
+
+	// Slow, flaky and strict server: some batches are retried, some end as dead letters.
+	@Test
+	public void weeklyListWithFaults() throws Exception {
+		server.setLatencyMillis(20);
+		server.setTransientFailureRate(0.05);
+		server.setDropRate(0.02);
+		server.setPermanentFailureRate(0.01);
+		long deadLettersBefore = deadLetterRepository.count();
+
+		run("weekly list, faults", () -> emailSender.sendOutWeekly(weekly()));
+
+		System.out.println(String.format("    %d dead letters", deadLetterRepository.count() - deadLettersBefore));
+	}
+
+	private void seed() {
+		// The admin's id is fixed (SchemeValues.adminId), which save() would not keep.
+		jdbcTemplate.update(
+				"insert into admin (id, email, password, new_name_prompt, wait_before_deletion) values (?, ?, ?, ?, ?)",
+				SchemeValues.adminId, "admin@example.com", "not-a-password", false, 7);
+
+		Category current = categoryRepository.save(new Category("Refua", "רפואה", true, 180, 1));
+		categoryRepository.save(new Category("Shidduchim", "שידוכים", false, 40, 2));
+		categoryId = current.getId();
+
+		parashaRepository.save(new Parasha(0, "Bereishit", "בראשית", true));
+
+		List<Davener> davenerList = new ArrayList<Davener>();
+		for (int i = 0; i < daveners; i++) {
+			Davener davener = new Davener();
+			davener.setEmail("davener" + i + "@example.com");
+			davenerList.add(davener);
+		}
+		davenerRepository.saveAll(davenerList);
+
+		// Expired yesterday, so the expiry run picks them all up
+		List<Davenfor> davenforList = new ArrayList<Davenfor>();
+		for (int i = 0; i < names; i++) {
+			Davenfor davenfor = new Davenfor();
+			davenfor.setCategory(current);
+			davenfor.setNameEnglish("Name " + letters(i, 'a', 26) + " ben Sarah");
+			davenfor.setNameHebrew("שם " + letters(i, 'א', 27) + " בן שרה");
+			davenfor.setSubmitterEmail("submitter" + (i % Math.max(names / 5, 1)) + "@example.com");
+			davenfor.setExpireAt(LocalDate.now().minusDays(1));
+			davenforList.add(davenfor);
+		}
+		davenforRepository.saveAll(davenforList);
+
+		// Saved straight to the repositories, so the segments are read afresh.
+		davenerSegments.reload();
+	}
+
+	// Names may not contain digits, so they are told apart by letters instead.
+	private static String letters(int number, char first, int count) {
+		StringBuilder letters = new StringBuilder();
+		do {
+			letters.append((char) (first + number % count));
+			number /= count;
+		} while (number > 0);
+		return letters.toString();
+	}
+
+	private Weekly weekly() {
+		return new Weekly("Bereishit", "Parashat Bereishit", categoryId, null, format);
+	}
+
+	private void run(String name, Action action) throws Exception {
+		long start = System.nanoTime();
+		action.run();
+		waitForOutbox();
+		long nanos = System.nanoTime() - start;
+
+		List<FakeSmtpServer.Received> received = server.getReceived();
+		long[] latencies = new long[received.size()];
+		int recipients = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = received.get(i).getNanos();
+			recipients += received.get(i).getRecipients().size();
+		}
+		Arrays.sort(latencies);
+
+		System.out.println(String.format(
+				"%-22s %5d messages to %6d recipients in %6.2f s: %7.1f messages/s, p50 %6.1f ms, p99 %6.1f ms, "
+						+ "%,d bytes on the wire",
+				name, received.size(), recipients, nanos / 1e9, received.size() / (nanos / 1e9),
+				percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, server.getBytesOnTheWire()));
+		System.out.println(String.format("    %d connections, %d temporary failures, %d refused, %d dropped",
+				server.getConnectionsOpened(), server.getTransientFailures(), server.getPermanentFailures(),
+				server.getDrops()));
+	}
+
+	// Until no batch is waiting to be sent or retried
+	private void waitForOutbox() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			boolean pending = false;
+			for (OutboundBatch batch : outboundBatchRepository.findAll()) {
+				if (batch.getStatus() == OutboundStatus.QUEUED || batch.getStatus() == OutboundStatus.SENDING) {
+					pending = true;
+					break;
+				}
+			}
+			if (!pending) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+		fail("The outbox was not empty after " + timeoutMillis + " ms");
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+	}
+
+	private interface Action {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,128 @@
+package com.aliza.davening.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.aliza.davening.DavenerSegments;
+import com.aliza.davening.WeeklyArtifactStore;
+import com.aliza.davening.exceptions.PermissionException;
+import com.aliza.davening.repositories.DavenerRepository;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UnsubscribeServiceTest {
+
+	@Mock
+	private DavenerRepository davenerRepository;
+
+	@Mock
+	private WeeklyArtifactStore weeklyArtifactStore;
+
+	@Mock
+	private DavenerSegments davenerSegments;
+
+	@InjectMocks
+	private UnsubscribeService unsubscribeService;
+
+	@Before
+	public void setSecret() {
+		withSecret(unsubscribeService, "test-only-unsubscribe-secret");
+	}
+
+	@Test
+	public void tokenOfTheAddressIsValid() {
+		String token = unsubscribeService.token("davener@example.com");
+
+		assertTrue(unsubscribeService.isValid("davener@example.com", token));
+		// Addresses are compared as the mail server would
+		assertTrue(unsubscribeService.isValid(" Davener@Example.com", token));
+	}
+
+	@Test
+	public void tokenOfAnotherAddressIsRejected() {
+		String token = unsubscribeService.token("davener@example.com");
+
+		assertFalse(unsubscribeService.isValid("someone.else@example.com", token));
+	}
+
+	@Test
+	public void changedTokenIsRejected() {
+		String token = unsubscribeService.token("davener@example.com");
+		String changed = (token.charAt(0) == 'A' ? 'B' : 'A') + token.substring(1);
+
+		assertFalse(unsubscribeService.isValid("davener@example.com", changed));
+		assertFalse(unsubscribeService.isValid("davener@example.com", token.substring(1)));
+		assertFalse(unsubscribeService.isValid("davener@example.com", ""));
+		assertFalse(unsubscribeService.isValid("davener@example.com", null));
+		assertFalse(unsubscribeService.isValid(null, token));
+	}
+
+	@Test
+	public void tokenOfAnotherSecretIsRejected() {
+		UnsubscribeService otherSecret = withSecret(new UnsubscribeService(), "another-unsubscribe-secret");
+		String token = otherSecret.token("davener@example.com");
+
+		assertNotEquals(unsubscribeService.token("davener@example.com"), token);
+		assertFalse(unsubscribeService.isValid("davener@example.com", token));
+	}
+
+	// Starts all the same, with no links to give out or accept
+	@Test
+	public void shortSecretTurnsLinksOff() {
+		UnsubscribeService noSecret = withSecret(new UnsubscribeService(), "too-short");
+
+		assertTrue(unsubscribeService.isEnabled());
+		assertFalse(noSecret.isEnabled());
+		assertFalse(noSecret.isValid("davener@example.com", unsubscribeService.token("davener@example.com")));
+	}
+
+	@Test
+	public void linkCarriesTheToken() {
+		String link = unsubscribeService.link("davener+list@example.com");
+
+		assertEquals("http://localhost:8080/dlist/unsubscribe?email=davener%2Blist%40example.com&token="
+				+ unsubscribeService.token("davener+list@example.com"), link);
+	}
+
+	@Test
+	public void validTokenUnsubscribes() throws Exception {
+		when(davenerRepository.disactivateDaveners(Collections.singleton("davener@example.com"))).thenReturn(1);
+
+		assertTrue(unsubscribeService.unsubscribe("davener@example.com",
+				unsubscribeService.token("davener@example.com")));
+		verify(davenerSegments).setActive(Collections.singleton("davener@example.com"), false);
+		verify(weeklyArtifactStore).invalidateAll();
+	}
+
+	@Test
+	public void invalidTokenDoesNotUnsubscribe() {
+		try {
+			unsubscribeService.unsubscribe("davener@example.com", unsubscribeService.token("other@example.com"));
+			throw new AssertionError("An invalid token was accepted");
+		} catch (PermissionException e) {
+			verify(davenerRepository, never()).disactivateDaveners(anyCollection());
+		}
+	}
+
+	private static UnsubscribeService withSecret(UnsubscribeService service, String secret) {
+		ReflectionTestUtils.setField(service, "secret", secret);
+		ReflectionTestUtils.setField(service, "unsubscribeUrl", "http://localhost:8080/dlist/unsubscribe");
+		ReflectionTestUtils.invokeMethod(service, "initKey");
+		return service;
+	}
+}